@@ -42,6 +42,7 @@ import java.lang.management.ManagementFactory;
 import java.net.SocketException;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,6 +105,7 @@ public class BigIO {
         ClusterService cluster = new ClusterService();
         MemberHolder memberHolder = new MemberHolder();
         ListenerRegistry registry = new ListenerRegistry();
+        registry.init();
         MCDiscovery mc = new MCDiscovery();
         mc.setMemberHolder(memberHolder);
         cluster.setMulticastDiscovery(mc);
@@ -184,6 +186,75 @@ public class BigIO {
         cluster.sendMessage(topic, partition, message, offsetMilliseconds);
     }
 
+    /**
+     * Send a message across a topic without waiting for it to be written. 
+     * The future completes once the message is written to every remote 
+     * member it goes to. Remote writes never wait: when a member's outbound 
+     * buffer is full, the io.bigio.remote.backpressure policy decides 
+     * whether the write is held until there is room, fails the future or 
+     * drops the message, which cancels the future.
+     * 
+     * <p>
+     * The message is still encoded, and interceptors run, on the calling 
+     * thread. The call can wait in two cases. Handing the message to local 
+     * listeners on a topic using the ring buffer dispatch strategy waits 
+     * while the ring buffer is full. On an encrypted topic, the first 
+     * message to a member and the first one after each rekey interval wrap 
+     * a new session key with the member's RSA key on the calling thread.
+     * </p>
+     * 
+     * @param <T> the type of message
+     * @param topic the name of the topic
+     * @param message the message to send
+     * @return the completion of the send
+     */
+    public <T> CompletableFuture<Void> sendAsync(String topic, T message) {
+        return sendAsync(topic, TopicUtils.ALL_PARTITIONS, message);
+    }
+
+    /**
+     * Send a message across a topic and partition without waiting for it to 
+     * be written.
+     * 
+     * @param <T> the type of message
+     * @param topic the name of the topic
+     * @param partition a partition
+     * @param message the message to send
+     * @return the completion of the send
+     * @see #sendAsync(java.lang.String, java.lang.Object) 
+     */
+    public <T> CompletableFuture<Void> sendAsync(String topic, String partition, T message) {
+        return cluster.sendMessageAsync(topic, partition, message);
+    }
+
+    /**
+     * Send a batch of messages across a topic. The messages are routed once 
+     * and packed into as few frames as possible for each member.
+     * 
+     * @param <T> the type of message
+     * @param topic the name of the topic
+     * @param messages the messages to send
+     * @throws IOException in case of an error in the message pipeline
+     */
+    public <T> void sendBatch(String topic, Collection<T> messages) throws IOException {
+        sendBatch(topic, TopicUtils.ALL_PARTITIONS, messages);
+    }
+
+    /**
+     * Send a batch of messages across a topic and partition. The messages 
+     * are routed once and packed into as few frames as possible for each 
+     * member.
+     * 
+     * @param <T> the type of message
+     * @param topic the name of the topic
+     * @param partition a partition
+     * @param messages the messages to send
+     * @throws IOException in case of an error in the message pipeline
+     */
+    public <T> void sendBatch(String topic, String partition, Collection<T> messages) throws IOException {
+        cluster.sendBatch(topic, partition, messages);
+    }
+
     /**
      * Add a listener on a topic across all partitions.
      * 
@@ -207,6 +278,77 @@ public class BigIO {
         cluster.addListener(topic, partition, listener);
     }
 
+    /**
+     * Add a listener on a topic across all partitions, setting how messages 
+     * on the topic are handed to its listeners.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param listener the listener to add
+     * @param strategy the dispatch strategy of the topic
+     */
+    public <T> void addListener(String topic, MessageListener<T> listener, DispatchStrategy strategy) {
+        addListener(topic, TopicUtils.ALL_PARTITIONS, listener, strategy);
+    }
+
+    /**
+     * Add a listener on a topic and partition, setting how messages on the 
+     * topic are handed to its listeners.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param partition a partition
+     * @param listener the listener to add
+     * @param strategy the dispatch strategy of the topic
+     */
+    public <T> void addListener(String topic, String partition, MessageListener<T> listener, DispatchStrategy strategy) {
+        cluster.setDispatchStrategy(topic, strategy);
+        cluster.addListener(topic, partition, listener);
+    }
+
+    /**
+     * Add a batch listener on a topic across all partitions. Batch size and 
+     * window come from io.bigio.batch.size and io.bigio.batch.window.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param listener the batch listener to add
+     */
+    public <T> void addBatchListener(String topic, BatchMessageListener<T> listener) {
+        cluster.addBatchListener(topic, TopicUtils.ALL_PARTITIONS, listener);
+    }
+
+    /**
+     * Add a batch listener on a topic and partition. Batch size and window 
+     * come from io.bigio.batch.size and io.bigio.batch.window.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param partition a partition
+     * @param listener the batch listener to add
+     */
+    public <T> void addBatchListener(String topic, String partition, BatchMessageListener<T> listener) {
+        cluster.addBatchListener(topic, partition, listener);
+    }
+
+    /**
+     * Add a batch listener on a topic and partition. A batch is handed to 
+     * the listener once it holds maxSize messages or once its first message 
+     * has waited windowMillis.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param partition a partition
+     * @param listener the batch listener to add
+     * @param maxSize the most messages in a batch
+     * @param windowMillis how long the first message of a batch waits for 
+     * the batch to fill
+     */
+    public <T> void addBatchListener(String topic, String partition, BatchMessageListener<T> listener, 
+            int maxSize, long windowMillis) {
+        cluster.addBatchListener(topic, partition, listener, maxSize, windowMillis);
+    }
+
     /**
      * Remove all registered listeners from the topic.
      * 
@@ -275,6 +417,123 @@ public class BigIO {
         cluster.setDeliveryType(topic, type);
     }
 
+    /**
+     * Set how messages on a topic are handed to its local listeners. By 
+     * default every topic shares one ring buffer thread.
+     * 
+     * @param topic a topic.
+     * @param strategy the dispatch strategy.
+     * @throws IllegalArgumentException if the topic has blocking listener 
+     * queues and the strategy dispatches on shared threads.
+     */
+    public void setDispatchStrategy(String topic, DispatchStrategy strategy) {
+        cluster.setDispatchStrategy(topic, strategy);
+    }
+
+    /**
+     * Add a listener that may block on a topic across all partitions. Each 
+     * message on the topic is handed to its listeners on a virtual thread 
+     * (or a pooled thread on runtimes without virtual threads), with at 
+     * most the given number of messages in flight.
+     * 
+     * @param <T> the type of message expected
+     * @param topic the name of the topic
+     * @param listener the listener to add
+     * @param maxConcurrency the maximum number of messages in flight, or 
+     * zero for no limit
+     */
+    public <T> void addBlockingListener(String topic, MessageListener<T> listener, int maxConcurrency) {
+        cluster.setMaxConcurrency(topic, maxConcurrency);
+        addListener(topic, listener, DispatchStrategy.VIRTUAL_THREAD);
+    }
+
+    /**
+     * Limit how many messages on a topic are handed to its listeners at 
+     * once. This applies to topics using the virtual thread dispatch 
+     * strategy.
+     * 
+     * @param topic a topic.
+     * @param max the maximum number of messages in flight, or zero for no 
+     * limit.
+     */
+    public void setMaxConcurrency(String topic, int max) {
+        cluster.setMaxConcurrency(topic, max);
+    }
+
+    /**
+     * Give each listener on a topic its own bounded queue, so a slow 
+     * listener falls behind on its own instead of holding up the other 
+     * topics on this node. This applies to listeners added afterwards. The 
+     * blocking policy needs a topic dispatched on threads of its own, so set 
+     * the ordered or virtual thread strategy first.
+     * 
+     * @param topic a topic.
+     * @param policy what to do when a listener's queue is full.
+     * @param capacity the capacity of each queue, or zero for no queue.
+     * @throws IllegalArgumentException if the policy blocks and the topic is 
+     * dispatched on shared threads.
+     */
+    public void setOverflowPolicy(String topic, OverflowPolicy policy, int capacity) {
+        cluster.setOverflowPolicy(topic, policy, capacity);
+    }
+
+    /**
+     * Make a topic a last-value topic. Each listener on the topic gets a 
+     * queue in which a message overwrites the queued message with the same 
+     * key, so a lagging listener skips stale values instead of building a 
+     * backlog. The queue is unbounded unless a capacity is set with 
+     * {@link #setOverflowPolicy}. This applies to listeners added afterwards.
+     * 
+     * @param <T> the type of message on the topic.
+     * @param topic a topic.
+     * @param keys pulls the conflation key out of a message.
+     */
+    public <T> void setConflation(String topic, KeyExtractor<T> keys) {
+        cluster.setConflation(topic, keys);
+    }
+
+    /**
+     * Conflate the messages sent on a topic to other members. A message 
+     * waits for the linger window from io.bigio.conflation.linger and is 
+     * replaced by any later message with the same key, so only the latest 
+     * value goes on the wire.
+     * 
+     * @param <T> the type of message on the topic.
+     * @param topic a topic.
+     * @param keys pulls the conflation key out of a message.
+     */
+    public <T> void setSenderConflation(String topic, KeyExtractor<T> keys) {
+        cluster.setSenderConflation(topic, keys, -1);
+    }
+
+    /**
+     * Conflate the messages sent on a topic to other members. A message 
+     * waits for up to lingerMillis and is replaced by any later message with 
+     * the same key, so only the latest value goes on the wire.
+     * 
+     * @param <T> the type of message on the topic.
+     * @param topic a topic.
+     * @param keys pulls the conflation key out of a message.
+     * @param lingerMillis how long a message waits to be replaced.
+     */
+    public <T> void setSenderConflation(String topic, KeyExtractor<T> keys, long lingerMillis) {
+        cluster.setSenderConflation(topic, keys, lingerMillis);
+    }
+
+    /**
+     * Set whether messages on a topic are encrypted. This overrides the 
+     * topic patterns configured through the encryption properties and only 
+     * has an effect when encryption is enabled. Every member should agree 
+     * on the setting, since plaintext messages on an encrypted topic are 
+     * dropped.
+     * 
+     * @param topic a topic.
+     * @param encrypted whether to encrypt the topic.
+     */
+    public void setEncrypted(String topic, boolean encrypted) {
+        cluster.setEncrypted(topic, encrypted);
+    }
+
     /**
      * Get the cluster service for unit testing purposes.
      * 
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio;
+
+/**
+ * An enumeration of the ways messages can be handed to the local listeners 
+ * of a topic.
+ * 
+ * @author Andy Trimble
+ */
+public enum DispatchStrategy {
+    /**
+     * Run listeners on the ring buffer thread shared by all topics.
+     */
+    RING_BUFFER, 
+
+    /**
+     * Run listeners on a thread dedicated to the topic, in the order 
+     * messages arrive.
+     */
+    ORDERED, 
+
+    /**
+     * Run listeners on a shared work-stealing pool. Messages on the topic 
+     * may be handled concurrently and out of order.
+     */
+    WORK_STEALING, 
+
+    /**
+     * Run listeners on a new virtual thread per message, falling back to a 
+     * cached thread pool on runtimes without virtual threads. Suited to 
+     * listeners that block. With a concurrency limit, messages over the 
+     * limit wait in a per-topic queue and are started as running ones 
+     * finish, so the dispatching thread never waits.
+     */
+    VIRTUAL_THREAD;
+}
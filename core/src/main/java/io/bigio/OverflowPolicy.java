@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.bigio;
+
+/**
+ * An enumeration of what a listener's bounded queue does with a message that 
+ * arrives while the queue is full.
+ * 
+ * @author Andy Trimble
+ */
+public enum OverflowPolicy {
+    /**
+     * Hold the dispatching thread until the listener makes room. Only topics 
+     * dispatched on threads of their own, with the ordered or virtual 
+     * thread strategy, may use it. On the shared ring buffer and 
+     * work-stealing threads, waiting would stall every other topic, so the 
+     * policy is rejected there.
+     */
+    BLOCK, 
+
+    /**
+     * Drop the arriving message.
+     */
+    DROP_NEWEST, 
+
+    /**
+     * Drop the oldest queued message to make room for the arriving one.
+     */
+    DROP_OLDEST, 
+
+    /**
+     * Replace the queued backlog with the arriving message, so the listener 
+     * only sees the latest value.
+     */
+    CONFLATE;
+}
@@ -42,7 +42,8 @@ import java.util.Map;
 
 /**
  * This is the "listeners" CLI command. This command will print all of the
- * registered listeners in a BigIO cluster.
+ * registered listeners in a BigIO cluster, along with the bounded queues of 
+ * the local listeners and how many messages they have dropped.
  * 
  * @author Andy Trimble
  */
@@ -90,6 +91,18 @@ public class ListenersCommand implements CommandLine {
             });
         });
 
+        if(!registry.getListenerQueues().isEmpty()) {
+            buff.append("\nLocal listener queues:\n");
+            registry.getListenerQueues().stream().forEach((queue) -> {
+                buff.append("    ").append(queue.getTopic())
+                        .append(" (").append(queue.getPartition()).append(") ")
+                        .append(queue.getPolicy()).append(" ")
+                        .append(queue.size()).append("/").append(queue.getCapacity())
+                        .append(" queued, ").append(queue.getDropped()).append(" dropped, ")
+                        .append(queue.getConflated()).append(" conflated\n");
+            });
+        }
+
         System.out.println(buff.toString());
     }
 
@@ -31,6 +31,13 @@ package io.bigio.cli;
 
 import io.bigio.CommandLine;
 import io.bigio.Component;
+import io.bigio.core.member.Transport;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -66,6 +73,7 @@ public class MemCommand implements CommandLine {
     public void execute(String... args) {
         printOSStats();
         printMemStats();
+        printBufferStats();
     }
 
     /**
@@ -145,4 +153,58 @@ public class MemCommand implements CommandLine {
 
         System.out.println(stats.toString());
     }
+
+    private void printBufferStats() {
+        ByteBufAllocator alloc = Transport.INSTANCE.getAllocator();
+
+        StringBuilder stats = new StringBuilder();
+
+        stats.append("\nBuffers:\n");
+        stats.append("    Leak Detection: ").append(ResourceLeakDetector.getLevel()).append("\n");
+        stats.append("    Detected Leaks: ").append(Transport.INSTANCE.getDetectedLeaks()).append("\n");
+
+        if(alloc instanceof PooledByteBufAllocator) {
+            PooledByteBufAllocator pooled = (PooledByteBufAllocator)alloc;
+            stats.append("    Allocator: pooled\n");
+            stats.append("    Thread Caches: ").append(pooled.numThreadLocalCaches()).append("\n");
+            stats.append("\n    Heap Arenas: ").append(pooled.numHeapArenas()).append("\n");
+            appendArenas(stats, pooled.heapArenas());
+            stats.append("\n    Direct Arenas: ").append(pooled.numDirectArenas()).append("\n");
+            appendArenas(stats, pooled.directArenas());
+        } else {
+            stats.append("    Allocator: unpooled\n");
+        }
+
+        System.out.println(stats.toString());
+    }
+
+    private static void appendArenas(StringBuilder stats, List<PoolArenaMetric> arenas) {
+        for(int i = 0; i < arenas.size(); ++i) {
+            PoolArenaMetric arena = arenas.get(i);
+            stats.append("        Arena ").append(i).append("\n");
+            stats.append("            Allocations: ").append(arena.numAllocations()).append("\n");
+            stats.append("            Deallocations: ").append(arena.numDeallocations()).append("\n");
+            stats.append("            Active: ").append(arena.numActiveAllocations()).append("\n");
+
+            // The arena guards its chunk lists with its own monitor.
+            long used = 0;
+            synchronized(arena) {
+                for(PoolChunkListMetric list : arena.chunkLists()) {
+                    int chunks = 0;
+                    long listUsed = 0;
+                    for(PoolChunkMetric chunk : list) {
+                        ++chunks;
+                        listUsed += chunk.chunkSize() - chunk.freeBytes();
+                    }
+                    used += listUsed;
+                    // The first and last lists have open ended bounds.
+                    stats.append("            Chunks ").append(Math.max(0, list.minUsage()))
+                            .append("-").append(Math.min(100, list.maxUsage()))
+                            .append("% used: ").append(chunks)
+                            .append(" (").append(listUsed / 1024).append(" KB used)\n");
+                }
+            }
+            stats.append("            Used: ").append(used / 1024).append(" KB\n");
+        }
+    }
 }
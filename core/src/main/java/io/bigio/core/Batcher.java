@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core;
+
+import io.bigio.BatchMessageListener;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.function.Consumer;
+
+/**
+ * Collects the messages of a topic into batches for a batch listener. A batch 
+ * is handed over as soon as it is full. A batch that does not fill up within 
+ * the window is closed by a marker that the timer dispatches along the same 
+ * route as the topic's messages, through the listener's queue if it has one. 
+ * Both kinds of batch are therefore handed over on the same thread and in 
+ * order. Batches are handed to the listener one at a time, and never while 
+ * this batcher's lock is held, so a slow listener does not hold up the 
+ * timer.
+ * 
+ * @author Andy Trimble
+ * @param <T> a type of message
+ */
+final class Batcher<T> implements Consumer<Object> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Batcher.class);
+
+    private final String topic;
+    private final BatchMessageListener<T> listener;
+    private final int maxSize;
+    private final long windowMillis;
+    private final TopicDispatcher dispatcher;
+    private final Timer timer;
+
+    private List<Consumer<Object>> route;
+    private List<Object> batch;
+    private Expiry expiry;
+    private Timeout timeout;
+
+    // Closed batches waiting to be handed over, and whether a thread is 
+    // currently handing them over.
+    private final Queue<List<Object>> ready = new ArrayDeque<>();
+    private boolean delivering;
+
+    Batcher(String topic, BatchMessageListener<T> listener, int maxSize, long windowMillis, 
+            TopicDispatcher dispatcher, Timer timer) {
+        this.topic = topic;
+        this.listener = listener;
+        this.maxSize = Math.max(1, maxSize);
+        this.windowMillis = windowMillis;
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+        this.route = Collections.singletonList(this);
+        this.batch = new ArrayList<>(this.maxSize);
+    }
+
+    /**
+     * Set the listener this batcher is registered as, so window markers 
+     * take the same route as messages.
+     * 
+     * @param registered the registered listener wrapping this batcher.
+     */
+    synchronized void setRoute(Consumer<Object> registered) {
+        this.route = Collections.singletonList(registered);
+    }
+
+    @Override
+    public void accept(Object message) {
+        synchronized(this) {
+            if(message instanceof Expiry) {
+                if(message == expiry && !batch.isEmpty()) {
+                    ready.add(take());
+                }
+            } else {
+                batch.add(message);
+                if(batch.size() >= maxSize || windowMillis <= 0) {
+                    ready.add(take());
+                } else if(timeout == null) {
+                    expiry = new Expiry(this);
+                    try {
+                        timeout = timer.newTimeout(expiry, windowMillis, TimeUnit.MILLISECONDS);
+                    } catch(IllegalStateException ex) {
+                        // The timer is stopped once the registry shuts down, 
+                        // so the window can no longer close the batch.
+                        ready.add(take());
+                    }
+                }
+            }
+        }
+
+        deliver();
+    }
+
+    private void deliver() {
+        while(true) {
+            List<Object> next;
+            synchronized(this) {
+                if(delivering || ready.isEmpty()) {
+                    return;
+                }
+                delivering = true;
+                next = ready.poll();
+            }
+
+            try {
+                receive(next);
+            } finally {
+                synchronized(this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+
+    private List<Object> take() {
+        List<Object> ret = batch;
+        batch = new ArrayList<>(maxSize);
+        if(timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        expiry = null;
+        return ret;
+    }
+
+    private void receive(List<Object> messages) {
+        try {
+            listener.receive((List<T>)(List<?>)messages);
+        } catch(ClassCastException ex) {
+            LOG.error("Topic '" + topic + "' received incorrect message type in batch.", ex);
+        } catch(Exception ex) {
+            LOG.error("Exception in batch listener.", ex);
+        }
+    }
+
+    private void expire(Expiry marker) {
+        List<Consumer<Object>> to;
+        synchronized(this) {
+            if(expiry != marker) {
+                return;
+            }
+            to = route;
+        }
+        dispatcher.dispatch(topic, to, marker);
+    }
+
+    /**
+     * Marks the end of a batch window. Queues never drop or conflate it.
+     */
+    static final class Expiry implements TimerTask {
+
+        private final Batcher<?> batcher;
+
+        Expiry(Batcher<?> batcher) {
+            this.batcher = batcher;
+        }
+
+        @Override
+        public void run(Timeout expired) {
+            batcher.expire(this);
+        }
+    }
+}
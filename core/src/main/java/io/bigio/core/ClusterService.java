@@ -29,12 +29,18 @@
 
 package io.bigio.core;
 
+import io.bigio.BatchMessageListener;
 import io.bigio.Component;
 import io.bigio.DeliveryType;
+import io.bigio.DispatchStrategy;
 import io.bigio.Inject;
 import io.bigio.Interceptor;
+import io.bigio.KeyExtractor;
 import io.bigio.MessageListener;
+import io.bigio.OverflowPolicy;
 import io.bigio.Parameters;
+import io.bigio.core.codec.EnvelopeCodec;
+import io.bigio.core.codec.EnvelopeFrame;
 import io.bigio.core.codec.GenericCodec;
 import io.bigio.core.member.AbstractMember;
 import io.bigio.core.member.MeMember;
@@ -44,6 +50,7 @@ import io.bigio.core.member.Member;
 import io.bigio.core.member.MemberHolder;
 import io.bigio.core.member.MemberKey;
 import io.bigio.core.member.MemberStatus;
+import io.bigio.core.member.RemoteMember;
 import io.bigio.core.member.RemoteMemberTCP;
 import io.bigio.core.member.RemoteMemberUDP;
 import io.bigio.util.NetworkUtil;
@@ -56,6 +63,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,6 +80,12 @@ public class ClusterService {
     public static final String DEFAULT_PROTOCOL = "tcp";
     private static final String GOSSIP_PORT_PROPERTY = "io.bigio.port.gossip";
     private static final String DATA_PORT_PROPERTY = "io.bigio.port.data";
+    public static final String CONFLATION_LINGER_PROPERTY = "io.bigio.conflation.linger";
+    private static final String DEFAULT_CONFLATION_LINGER = "10";
+
+    // Payload bytes packed into one batch frame, leaving room under the 
+    // 32 KiB frame limit for the header and encryption.
+    private static final int BATCH_BYTES = 24 * 1024;
 
     @Inject
     private MCDiscovery multicast;
@@ -90,6 +104,7 @@ public class ClusterService {
 
     private final Map<String, DeliveryType> deliveries = new ConcurrentHashMap<>();
     private final Map<String, Integer> roundRobinIndex = new ConcurrentHashMap<>();
+    private final Map<String, Conflation> conflations = new ConcurrentHashMap<>();
 
     private boolean shuttingDown = false;
 
@@ -149,6 +164,35 @@ public class ClusterService {
         }
     }
 
+    /**
+     * Conflate the messages sent on a topic to remote members. Messages 
+     * with the same key replace each other until the linger window closes.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param keys the key extractor.
+     * @param lingerMillis how long a message waits to be replaced, or a 
+     * negative value for io.bigio.conflation.linger.
+     */
+    public <T> void setSenderConflation(String topic, KeyExtractor<T> keys, long lingerMillis) {
+        if(lingerMillis < 0) {
+            lingerMillis = Long.parseLong(Parameters.INSTANCE.getProperty(
+                    CONFLATION_LINGER_PROPERTY, DEFAULT_CONFLATION_LINGER));
+        }
+        conflations.put(topic, new Conflation((Object m) -> keys.getKey((T)m), lingerMillis));
+    }
+
+    /**
+     * Set whether messages on a topic are encrypted, overriding the 
+     * configured encryption policy.
+     * 
+     * @param topic a topic.
+     * @param encrypted whether to encrypt the topic.
+     */
+    public void setEncrypted(String topic, boolean encrypted) {
+        memberHolder.getEncryptionPolicy().setEncrypted(topic, encrypted);
+    }
+
     /**
      * Add an interceptor to a topic.
      * 
@@ -172,6 +216,86 @@ public class ClusterService {
         registry.addLocalListener(topic, partition, consumer);
     }
 
+    /**
+     * Add a batch listener to a topic and partition.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param listener a batch listener.
+     */
+    public <T> void addBatchListener(String topic, String partition, BatchMessageListener<T> listener) {
+        registry.registerMemberForTopic(topic, partition, me);
+        registry.addLocalBatchListener(topic, partition, listener);
+    }
+
+    /**
+     * Add a batch listener to a topic and partition.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param listener a batch listener.
+     * @param maxSize the most messages in a batch.
+     * @param windowMillis how long the first message of a batch waits for 
+     * the batch to fill.
+     */
+    public <T> void addBatchListener(String topic, String partition, BatchMessageListener<T> listener, 
+            int maxSize, long windowMillis) {
+        registry.registerMemberForTopic(topic, partition, me);
+        registry.addLocalBatchListener(topic, partition, listener, maxSize, windowMillis);
+    }
+
+    /**
+     * Set how messages on a topic are handed to its local listeners.
+     * 
+     * @param topic a topic.
+     * @param strategy the dispatch strategy.
+     * @throws IllegalArgumentException if the topic has blocking listener 
+     * queues and the strategy dispatches on shared threads.
+     */
+    public void setDispatchStrategy(String topic, DispatchStrategy strategy) {
+        registry.setDispatchStrategy(topic, strategy);
+    }
+
+    /**
+     * Put the local listeners of a topic that are added from now on behind 
+     * their own bounded queue.
+     * 
+     * @param topic a topic.
+     * @param policy what to do when a queue is full.
+     * @param capacity the capacity of each queue, or zero for no queue.
+     * @throws IllegalArgumentException if the policy blocks and the topic is 
+     * dispatched on shared threads.
+     */
+    public void setOverflowPolicy(String topic, OverflowPolicy policy, int capacity) {
+        registry.setOverflowPolicy(topic, policy, capacity);
+    }
+
+    /**
+     * Conflate the queued messages of the local listeners of a topic that 
+     * are added from now on by key.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param keys the key extractor.
+     */
+    public <T> void setConflation(String topic, KeyExtractor<T> keys) {
+        registry.setConflation(topic, keys);
+    }
+
+    /**
+     * Limit how many messages on a topic are handed to its local listeners 
+     * at once under the virtual thread dispatch strategy.
+     * 
+     * @param topic a topic.
+     * @param max the maximum number of messages in flight, or zero for no 
+     * limit.
+     */
+    public void setMaxConcurrency(String topic, int max) {
+        registry.setMaxConcurrency(topic, max);
+    }
+
     /**
      * This method is no longer supported. Remove all listeners on a topic.
      * 
@@ -191,9 +315,48 @@ public class ClusterService {
      * @param partition a partition.
      * @param message a message.
      * @param offsetMilliseconds time offset of the message.
-     * @throws IOException in case of error in delivery.
+     * @throws IOException in case of error in delivery. When a broadcast 
+     * fails for some members it is still sent to the others and delivered 
+     * locally before the first failure is thrown.
      */
     public <T> void sendMessage(String topic, String partition, T message, int offsetMilliseconds) throws IOException {
+        sendMessage(topic, partition, message, offsetMilliseconds, null);
+    }
+
+    /**
+     * Send a message without waiting for it to be written to remote 
+     * members. The returned future completes once the message is written to 
+     * every remote member it is sent to, or handed to the local listeners if 
+     * only this member subscribes. It fails if a write fails or the back 
+     * pressure policy rejects it, and is cancelled if the message was 
+     * dropped. Conflated messages count as written once they are queued. 
+     * Local delivery on a full ring buffer and new session keys still wait 
+     * on the calling thread.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param message a message.
+     * @return the completion of the send.
+     */
+    public <T> CompletableFuture<Void> sendMessageAsync(String topic, String partition, T message) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        try {
+            sendMessage(topic, partition, message, 0, writes);
+        } catch(IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
+    }
+
+    private <T> void sendMessage(String topic, String partition, T message, int offsetMilliseconds, 
+            List<CompletableFuture<Void>> writes) throws IOException {
+        if(offsetMilliseconds == 0 && registry.sendLocal(topic, partition, message)) {
+            return;
+        }
+
         Envelope envelope = new Envelope();
         envelope.setDecoded(false);
         envelope.setExecuteTime(offsetMilliseconds);
@@ -209,16 +372,20 @@ public class ClusterService {
             deliveries.put(topic, delivery);
         }
 
+        Member[] members = registry.getRoute(topic);
+
+        Conflation conflation = conflations.get(topic);
+        Object key = conflation == null ? null : conflation.getKey(message);
+
         switch(delivery) {
             case ROUND_ROBIN:
 
-                if(!registry.getRegisteredMembers(topic).isEmpty()) {
+                if(members.length > 0) {
 
-                    int index = (roundRobinIndex.get(topic) + 1) % 
-                            registry.getRegisteredMembers(topic).size();
+                    int index = (roundRobinIndex.get(topic) + 1) % members.length;
                     roundRobinIndex.put(topic, index);
                 
-                    Member member = registry.getRegisteredMembers(topic).get(index);
+                    Member member = members[index];
 
                     if(me.equals(member)) {
                         envelope.setMessage(message);
@@ -228,17 +395,16 @@ public class ClusterService {
                         envelope.setDecoded(false);
                     }
 
-                    member.send(envelope);
+                    send(member, envelope, conflation, key, writes);
                 }
 
                 break;
             case RANDOM:
 
-                if(!registry.getRegisteredMembers(topic).isEmpty()) {
-                    int index = (int)(Math.random() *
-                            registry.getRegisteredMembers(topic).size());
+                if(members.length > 0) {
+                    int index = (int)(Math.random() * members.length);
 
-                    Member member = registry.getRegisteredMembers(topic).get(index);
+                    Member member = members[index];
 
                     if(me.equals(member)) {
                         envelope.setMessage(message);
@@ -248,24 +414,13 @@ public class ClusterService {
                         envelope.setDecoded(false);
                     }
 
-                    member.send(envelope);
+                    send(member, envelope, conflation, key, writes);
                 }
                 
                 break;
             case BROADCAST:
             default:
-                for(Member member : registry.getRegisteredMembers(topic)) {
-
-                    if(me.equals(member)) {
-                        envelope.setMessage(message);
-                        envelope.setDecoded(true);
-                    } else {
-                        envelope.setPayload(GenericCodec.encode(message));
-                        envelope.setDecoded(false);
-                    }
-
-                    member.send(envelope);
-                }
+                broadcast(envelope, message, members, conflation, key, writes);
         }
     }
 
@@ -282,6 +437,129 @@ public class ClusterService {
         sendMessage(topic, partition, message, 0);
     }
 
+    /**
+     * Send a batch of messages on a topic/partition. The route is looked up 
+     * once and the messages are packed into as few frames as possible for 
+     * each remote member. Round robin and random delivery pick one member 
+     * for the whole batch.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param messages the messages, sent in iteration order.
+     * @throws IOException in case of delivery error.
+     */
+    public <T> void sendBatch(String topic, String partition, Collection<T> messages) throws IOException {
+        if(messages.isEmpty()) {
+            return;
+        }
+
+        Member[] members = registry.getRoute(topic);
+        DeliveryType delivery = deliveries.getOrDefault(topic, DeliveryType.BROADCAST);
+        if(members.length > 1 && delivery != DeliveryType.BROADCAST) {
+            int index;
+            if(delivery == DeliveryType.ROUND_ROBIN) {
+                index = (roundRobinIndex.getOrDefault(topic, 0) + 1) % members.length;
+                roundRobinIndex.put(topic, index);
+            } else {
+                index = (int)(Math.random() * members.length);
+            }
+            members = new Member[] { members[index] };
+        }
+
+        boolean local = false;
+        List<Member> remotes = new ArrayList<>(members.length);
+        for(Member member : members) {
+            if(me.equals(member)) {
+                local = true;
+            } else {
+                remotes.add(member);
+            }
+        }
+
+        IOException failure = null;
+        if(!remotes.isEmpty()) {
+            List<byte[]> payloads = new ArrayList<>();
+            String className = null;
+            int size = 0;
+            for(T message : messages) {
+                String name = message.getClass().getName();
+                byte[] payload = GenericCodec.encode(message);
+                if(!payloads.isEmpty() && (!name.equals(className) || size + payload.length > BATCH_BYTES)) {
+                    failure = sendBatch(topic, partition, className, payloads, remotes, failure);
+                    payloads = new ArrayList<>();
+                    size = 0;
+                }
+                className = name;
+                payloads.add(payload);
+                size += payload.length + 5;
+            }
+            failure = sendBatch(topic, partition, className, payloads, remotes, failure);
+        }
+
+        if(local) {
+            for(T message : messages) {
+                if(!registry.sendLocal(topic, partition, message)) {
+                    Envelope envelope = new Envelope();
+                    envelope.setExecuteTime(0);
+                    envelope.setMillisecondsSinceMidnight(TimeUtil.getMillisecondsSinceMidnight());
+                    envelope.setSenderKey(MemberKey.getKey(me));
+                    envelope.setTopic(topic);
+                    envelope.setPartition(partition);
+                    envelope.setClassName(message.getClass().getName());
+                    envelope.setMessage(message);
+                    envelope.setDecoded(true);
+                    me.send(envelope);
+                }
+            }
+        }
+
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    private IOException sendBatch(String topic, String partition, String className, 
+            List<byte[]> payloads, List<Member> members, IOException failure) throws IOException {
+        Envelope batch = new Envelope();
+        batch.setDecoded(false);
+        batch.setBatch(true);
+        batch.setExecuteTime(0);
+        batch.setMillisecondsSinceMidnight(TimeUtil.getMillisecondsSinceMidnight());
+        batch.setSenderKey(MemberKey.getKey(me));
+        batch.setTopic(topic);
+        batch.setPartition(partition);
+        batch.setClassName(className);
+        batch.setPayload(EnvelopeCodec.encodeBatch(payloads));
+
+        boolean encrypted = memberHolder.getEncryptionPolicy().isEncrypted(topic);
+        EnvelopeFrame frame = null;
+
+        try {
+            for(Member member : members) {
+                try {
+                    if(encrypted && member.getPublicKey() != null) {
+                        Envelope copy = copyEnvelope(batch);
+                        copy.setPayload(batch.getPayload());
+                        member.send(copy);
+                    } else {
+                        if(frame == null) {
+                            frame = new EnvelopeFrame(batch);
+                        }
+                        ((RemoteMember)member).sendFrame(frame);
+                    }
+                } catch(IOException | RuntimeException ex) {
+                    failure = addFailure(failure, ex);
+                }
+            }
+        } finally {
+            if(frame != null) {
+                frame.release();
+            }
+        }
+        return failure;
+    }
+
     /**
      * Get the list of known members. Members returned by this method may be
      * either active or dead.
@@ -414,6 +692,140 @@ public class ClusterService {
         });
 
         memberHolder.clear();
+
+        registry.shutdown();
+    }
+
+    private void send(Member member, Envelope envelope, Conflation conflation, Object key, 
+            List<CompletableFuture<Void>> writes) throws IOException {
+        if(me.equals(member)) {
+            member.send(envelope);
+        } else if(key != null) {
+            ((RemoteMember)member).sendConflated(key, envelope, conflation.lingerMillis);
+        } else if(writes != null) {
+            writes.add(((RemoteMember)member).sendAsync(envelope));
+        } else {
+            member.send(envelope);
+        }
+    }
+
+    private <T> void broadcast(Envelope envelope, T message, Member[] members, 
+            Conflation conflation, Object key, List<CompletableFuture<Void>> writes) throws IOException {
+        boolean local = false;
+        byte[] payload = null;
+        EnvelopeFrame frame = null;
+        boolean encrypted = memberHolder.getEncryptionPolicy().isEncrypted(envelope.getTopic());
+        IOException failure = null;
+
+        try {
+            for(Member member : members) {
+                if(me.equals(member)) {
+                    local = true;
+                    continue;
+                }
+
+                // A failing member must not keep the message from the rest.
+                try {
+                    if(payload == null) {
+                        payload = GenericCodec.encode(message);
+                    }
+
+                    if(key != null) {
+                        // A conflated message may be replaced before it is 
+                        // sent, so it cannot share a frame.
+                        Envelope copy = copyEnvelope(envelope);
+                        copy.setPayload(payload);
+                        ((RemoteMember)member).sendConflated(key, copy, conflation.lingerMillis);
+                    } else if(encrypted && member.getPublicKey() != null) {
+                        // Encryption is keyed per member, so these members 
+                        // cannot share the plaintext frame.
+                        Envelope copy = copyEnvelope(envelope);
+                        copy.setPayload(payload);
+                        send(member, copy, conflation, null, writes);
+                    } else {
+                        if(frame == null) {
+                            envelope.setPayload(payload);
+                            frame = new EnvelopeFrame(envelope);
+                        }
+                        if(writes != null) {
+                            writes.add(((RemoteMember)member).sendFrameAsync(frame));
+                        } else {
+                            ((RemoteMember)member).sendFrame(frame);
+                        }
+                    }
+                } catch(IOException | RuntimeException ex) {
+                    if(writes != null) {
+                        CompletableFuture<Void> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(ex);
+                        writes.add(failed);
+                    } else {
+                        failure = addFailure(failure, ex);
+                    }
+                }
+            }
+        } finally {
+            if(frame != null) {
+                frame.release();
+            }
+        }
+
+        if(local) {
+            envelope.setMessage(message);
+            envelope.setDecoded(true);
+            me.send(envelope);
+        }
+
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Collect the failure of one member of a multi-member send. The first 
+     * failure is thrown once every member has been tried, carrying the 
+     * others as suppressed exceptions.
+     */
+    private static IOException addFailure(IOException failure, Exception ex) {
+        if(failure == null) {
+            return ex instanceof IOException ? (IOException)ex : new IOException(ex);
+        }
+        failure.addSuppressed(ex);
+        return failure;
+    }
+
+    /**
+     * The sender-side conflation settings of a topic.
+     */
+    private static final class Conflation {
+        private final KeyExtractor<Object> keys;
+        private final long lingerMillis;
+
+        Conflation(KeyExtractor<Object> keys, long lingerMillis) {
+            this.keys = keys;
+            this.lingerMillis = lingerMillis;
+        }
+
+        Object getKey(Object message) {
+            try {
+                return keys.getKey(message);
+            } catch(Exception ex) {
+                LOG.error("Cannot get the conflation key of a message.", ex);
+                return null;
+            }
+        }
+    }
+
+    private Envelope copyEnvelope(Envelope envelope) {
+        Envelope copy = new Envelope();
+        copy.setDecoded(false);
+        copy.setExecuteTime(envelope.getExecuteTime());
+        copy.setMillisecondsSinceMidnight(envelope.getMillisecondsSinceMidnight());
+        copy.setSenderKey(envelope.getSenderKey());
+        copy.setTopic(envelope.getTopic());
+        copy.setPartition(envelope.getPartition());
+        copy.setClassName(envelope.getClassName());
+        copy.setBatch(envelope.isBatch());
+        return copy;
     }
 
     private void handleGossipMessage(GossipMessage message) {
@@ -503,6 +915,9 @@ public class ClusterService {
             Member m = memberHolder.getMember(senderKey);
             m.getTags().clear();
             m.getTags().putAll(message.getTags());
+            if(m instanceof RemoteMember) {
+                ((RemoteMember)m).updateEnvelopeVersion();
+            }
         }
     }
 }
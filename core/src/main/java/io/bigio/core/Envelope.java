@@ -29,6 +29,8 @@
 
 package io.bigio.core;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * A message envelope containing the BigIO metadata for all messages.
  * 
@@ -44,10 +46,13 @@ public class Envelope<T> {
     private String partition;
     private String className;
     private byte[] payload;
+    private ByteBuf payloadBuffer;
 
     private byte[] key;
+    private int keyId;
     private boolean decoded = false;
     private boolean encrypted = false;
+    private boolean batch = false;
     private T message;
 
     /**
@@ -93,9 +98,19 @@ public class Envelope<T> {
     }
 
     /**
+     * Get the payload. If the payload is still held in a received buffer, 
+     * it is copied out and the buffer released. This is the one copy left 
+     * on the receive path: generated messages decode from a byte array 
+     * and the received buffers are usually direct.
+     * 
      * @return the payload
      */
     public byte[] getPayload() {
+        if(payload == null && payloadBuffer != null) {
+            payload = new byte[payloadBuffer.readableBytes()];
+            payloadBuffer.getBytes(payloadBuffer.readerIndex(), payload);
+            release();
+        }
         return payload;
     }
 
@@ -106,6 +121,34 @@ public class Envelope<T> {
         this.payload = payload;
     }
 
+    /**
+     * @return the payload buffer, or null if the payload has been 
+     * materialized
+     */
+    public ByteBuf getPayloadBuffer() {
+        return payloadBuffer;
+    }
+
+    /**
+     * Set a retained buffer holding the payload. The envelope takes 
+     * ownership of the buffer.
+     * 
+     * @param payloadBuffer the payloadBuffer to set
+     */
+    public void setPayloadBuffer(ByteBuf payloadBuffer) {
+        this.payloadBuffer = payloadBuffer;
+    }
+
+    /**
+     * Release the payload buffer, if one is still held.
+     */
+    public void release() {
+        if(payloadBuffer != null) {
+            payloadBuffer.release();
+            payloadBuffer = null;
+        }
+    }
+
     /**
      * @return the decoded
      */
@@ -203,4 +246,33 @@ public class Envelope<T> {
     public void setKey(byte[] key) {
         this.key = key;
     }
+
+    /**
+     * @return the id of the session key the payload is encrypted with, or 
+     * zero if the key is carried in full
+     */
+    public int getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @param keyId the keyId to set
+     */
+    public void setKeyId(int keyId) {
+        this.keyId = keyId;
+    }
+
+    /**
+     * @return whether the payload packs the payloads of several messages
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @param batch the batch to set
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
 }
@@ -29,27 +29,32 @@
 
 package io.bigio.core;
 
+import io.bigio.BatchMessageListener;
 import io.bigio.Component;
+import io.bigio.DispatchStrategy;
+import io.bigio.Initialize;
 import io.bigio.Interceptor;
+import io.bigio.KeyExtractor;
 import io.bigio.MessageListener;
+import io.bigio.OverflowPolicy;
+import io.bigio.Parameters;
 import io.bigio.core.member.Member;
 import io.bigio.core.member.MemberKey;
-import io.bigio.util.TopicUtils;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.Environment;
-import reactor.core.Reactor;
-import reactor.core.spec.Reactors;
-import reactor.event.Event;
-import reactor.event.selector.Selectors;
 import reactor.function.Consumer;
 
 /**
@@ -60,29 +65,86 @@ import reactor.function.Consumer;
 @Component
 public class ListenerRegistry {
 
-    private static final int THREAD_POOL_SIZE = 8;
+    public static final String BATCH_SIZE_PROPERTY = "io.bigio.batch.size";
+    public static final String BATCH_WINDOW_PROPERTY = "io.bigio.batch.window";
+    public static final String TIMER_TICK_PROPERTY = "io.bigio.timer.tickDuration";
+    public static final String TIMER_WHEEL_SIZE_PROPERTY = "io.bigio.timer.ticksPerWheel";
+    private static final String DEFAULT_BATCH_SIZE = "100";
+    private static final String DEFAULT_BATCH_WINDOW = "10";
+    private static final String DEFAULT_TIMER_TICK = "10";
+    private static final String DEFAULT_TIMER_WHEEL_SIZE = "512";
+
+    private static final Member[] NO_MEMBERS = new Member[0];
 
     private static final Logger LOG = LoggerFactory.getLogger(ListenerRegistry.class);
     
-    private final Environment environment = new Environment();
-    private final Reactor reactor;
+    // Local listeners by topic and partition. Messages are matched here and 
+    // handed to the dispatch strategy of their topic.
+    private final TopicIndex<Consumer<Object>> localListeners = new TopicIndex<>();
+    private final TopicDispatcher dispatcher = new TopicDispatcher();
 
-    private final ScheduledExecutorService futureExecutor = Executors.newScheduledThreadPool(THREAD_POOL_SIZE);
+    // Delayed messages and batch windows wait on a hashed wheel, so 
+    // scheduling is constant time and expiry is batched per tick. The worker 
+    // thread only starts once something is scheduled.
+    private volatile Timer delayTimer;
+    private boolean stopped = false;
 
     private Member me;
 
     private final Map<Member, Map<String, List<Registration>>> map = new ConcurrentHashMap<>();
 
+    // Immutable topic -> member snapshot. Rebuilt whenever a registration
+    // changes so the send path is a single lookup.
+    private volatile Map<String, Member[]> routes = Collections.emptyMap();
+
     private final Map<String, List<Interceptor>> interceptors = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
      */
     public ListenerRegistry() {
-        reactor = Reactors.reactor()
-                .env(environment)
-                .dispatcher(Environment.RING_BUFFER)
-                .get();
+
+    }
+
+    /**
+     * Initialize the registry.
+     */
+    @Initialize
+    public synchronized void init() {
+        startTimer();
+    }
+
+    /**
+     * Shut down the registry. Pending delayed messages and messages not yet 
+     * handed to local listeners are discarded, and batch listeners can no 
+     * longer be added.
+     */
+    public synchronized void shutdown() {
+        stopped = true;
+        if(delayTimer != null) {
+            delayTimer.stop();
+            delayTimer = null;
+        }
+        dispatcher.shutdown();
+    }
+
+    private Timer getTimer() {
+        Timer timer = delayTimer;
+        return timer != null ? timer : startTimer();
+    }
+
+    private synchronized Timer startTimer() {
+        if(stopped) {
+            return null;
+        }
+        if(delayTimer == null) {
+            delayTimer = new HashedWheelTimer(
+                    new DefaultThreadFactory("bigio-delay", true), 
+                    Long.parseLong(Parameters.INSTANCE.getProperty(TIMER_TICK_PROPERTY, DEFAULT_TIMER_TICK)), 
+                    TimeUnit.MILLISECONDS, 
+                    Integer.parseInt(Parameters.INSTANCE.getProperty(TIMER_WHEEL_SIZE_PROPERTY, DEFAULT_TIMER_WHEEL_SIZE)));
+        }
+        return delayTimer;
     }
 
     /**
@@ -98,6 +160,66 @@ public class ListenerRegistry {
         interceptors.get(topic).add(interceptor);
     }
 
+    /**
+     * Set how messages on a topic are handed to its local listeners.
+     * 
+     * @param topic a topic.
+     * @param strategy the dispatch strategy.
+     * @throws IllegalArgumentException if the topic has blocking listener 
+     * queues and the strategy dispatches on shared threads.
+     */
+    public void setDispatchStrategy(String topic, DispatchStrategy strategy) {
+        dispatcher.setStrategy(topic, strategy);
+    }
+
+    /**
+     * Limit how many messages on a topic are handed to its local listeners 
+     * at once under the virtual thread dispatch strategy.
+     * 
+     * @param topic a topic.
+     * @param max the maximum number of messages in flight, or zero for no 
+     * limit.
+     */
+    public void setMaxConcurrency(String topic, int max) {
+        dispatcher.setMaxConcurrency(topic, max);
+    }
+
+    /**
+     * Put the local listeners of a topic that are added from now on behind 
+     * their own bounded queue.
+     * 
+     * @param topic a topic.
+     * @param policy what to do when a queue is full.
+     * @param capacity the capacity of each queue, or zero for no queue.
+     * @throws IllegalArgumentException if the policy blocks and the topic is 
+     * dispatched on shared threads.
+     */
+    public void setOverflowPolicy(String topic, OverflowPolicy policy, int capacity) {
+        dispatcher.setQueue(topic, policy, capacity);
+    }
+
+    /**
+     * Conflate the queued messages of the local listeners of a topic that 
+     * are added from now on, so a lagging listener only receives the latest 
+     * message for each key.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param keys the key extractor.
+     */
+    public <T> void setConflation(String topic, KeyExtractor<T> keys) {
+        dispatcher.setKeyExtractor(topic, (Object m) -> keys.getKey((T)m));
+    }
+
+    /**
+     * Get the bounded queues of the local listeners.
+     * 
+     * @return the listener queues.
+     */
+    public Collection<Mailbox> getListenerQueues() {
+        return Collections.unmodifiableCollection(dispatcher.getMailboxes());
+    }
+
     /**
      * Set the current member.
      * 
@@ -124,17 +246,58 @@ public class ListenerRegistry {
      * @param listener a listener.
      */
     public <T> void addLocalListener(final String topic, final String partition, final MessageListener<T> listener) {
-        Consumer<Event<Envelope>> consumer = (Event<Envelope> m) -> {
+        Consumer<Object> consumer = (Object m) -> {
             try {
-                listener.receive((T)m.getData().getMessage());
+                listener.receive((T)m);
             } catch(ClassCastException ex) {
-                LOG.error("Topic '" + topic + "' received incorrect message type : " + m.getData().getMessage().getClass().getName(), ex);
+                LOG.error("Topic '" + topic + "' received incorrect message type : " + m.getClass().getName(), ex);
             } catch(Exception ex) {
                 LOG.error("Exception in Reactor.", ex);
             }
         };
 
-        reactor.on(Selectors.regex(TopicUtils.getTopicString(topic, partition)), consumer);
+        localListeners.add(topic, partition, dispatcher.queue(topic, partition, consumer));
+    }
+
+    /**
+     * Add a batch listener that is located in the same VM as the current 
+     * member, using the batch size and window from io.bigio.batch.size and 
+     * io.bigio.batch.window.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param listener a batch listener.
+     */
+    public <T> void addLocalBatchListener(String topic, String partition, BatchMessageListener<T> listener) {
+        addLocalBatchListener(topic, partition, listener, 
+                Integer.parseInt(Parameters.INSTANCE.getProperty(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE)), 
+                Long.parseLong(Parameters.INSTANCE.getProperty(BATCH_WINDOW_PROPERTY, DEFAULT_BATCH_WINDOW)));
+    }
+
+    /**
+     * Add a batch listener that is located in the same VM as the current 
+     * member.
+     * 
+     * @param <T> a message type.
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param listener a batch listener.
+     * @param maxSize the most messages in a batch.
+     * @param windowMillis how long the first message of a batch waits for 
+     * the batch to fill.
+     * @throws IllegalStateException if the registry has been shut down.
+     */
+    public <T> void addLocalBatchListener(String topic, String partition, BatchMessageListener<T> listener, 
+            int maxSize, long windowMillis) {
+        Timer timer = getTimer();
+        if(timer == null) {
+            throw new IllegalStateException("Cannot add a batch listener to a registry that has been shut down.");
+        }
+        Batcher<T> batcher = new Batcher<>(topic, listener, maxSize, windowMillis, dispatcher, timer);
+        Consumer<Object> registered = dispatcher.queue(topic, partition, batcher);
+        batcher.setRoute(registered);
+        localListeners.add(topic, partition, registered);
     }
 
     /**
@@ -143,7 +306,7 @@ public class ListenerRegistry {
      * @param topic a topic.
      * @param partition
      */
-    public void removeAllLocalListeners(String topic, String partition) {
+    public synchronized void removeAllLocalListeners(String topic, String partition) {
         Map<String, List<Registration>> allRegs = map.get(me);
         
         if(allRegs != null) {
@@ -151,8 +314,10 @@ public class ListenerRegistry {
 
             if(regs != null) {
                 LOG.trace("Removing " + regs.size() + " registration");
-                reactor.getConsumerRegistry().unregister(Selectors.regex(TopicUtils.getTopicString(topic, partition)));
+                localListeners.removeAll(topic, partition);
+                dispatcher.release(topic, partition);
                 regs.clear();
+                rebuildRoutes();
             } else {
                 LOG.trace("No listeners registered for topic " + topic);
             }
@@ -164,12 +329,18 @@ public class ListenerRegistry {
      * 
      * @param regs a set of registrations.
      */
-    public void removeRegistrations(List<Registration> regs) {
+    public synchronized void removeRegistrations(List<Registration> regs) {
+        if(regs.isEmpty()) {
+            return;
+        }
+
         map.values().stream().filter((allRegs) -> (allRegs != null)).forEach((allRegs) -> {
             allRegs.keySet().stream().forEach((key) -> {
                 allRegs.get(key).removeAll(regs);
             });
         });
+
+        rebuildRoutes();
     }
 
     /**
@@ -198,19 +369,22 @@ public class ListenerRegistry {
      */
     public List<Member> getRegisteredMembers(String topic) {
         List<Member> ret = new ArrayList<>();
-
-        map.keySet().stream().forEach((member) -> {
-            Map<String, List<Registration>> allRegs = map.get(member);
-            if (allRegs != null) {
-                allRegs.keySet().stream().filter((key) -> (key.equals(topic))).forEach((_item) -> {
-                    ret.add(member);
-                });
-            }
-        });
-
+        Collections.addAll(ret, getRoute(topic));
         return ret;
     }
 
+    /**
+     * Get the members that have at least one listener registered for a given
+     * topic. The returned array is shared and must not be modified.
+     * 
+     * @param topic a topic.
+     * @return all members that have at least one registered listener.
+     */
+    public Member[] getRoute(String topic) {
+        Member[] route = routes.get(topic);
+        return route == null ? NO_MEMBERS : route;
+    }
+
     /**
      * Register a member for a topic-partition.
      * 
@@ -251,9 +425,33 @@ public class ListenerRegistry {
                         .append(partition)
                         .append("'").toString());
             }
+
+            rebuildRoutes();
         }
     }
 
+    private void rebuildRoutes() {
+        Map<String, List<Member>> building = new HashMap<>();
+
+        map.entrySet().stream().forEach((entry) -> {
+            entry.getValue().entrySet().stream()
+                    .filter((regs) -> (!regs.getValue().isEmpty()))
+                    .forEach((regs) -> {
+                if(building.get(regs.getKey()) == null) {
+                    building.put(regs.getKey(), new ArrayList<>());
+                }
+                building.get(regs.getKey()).add(entry.getKey());
+            });
+        });
+
+        Map<String, Member[]> next = new HashMap<>();
+        building.entrySet().stream().forEach((entry) -> {
+            next.put(entry.getKey(), entry.getValue().toArray(new Member[entry.getValue().size()]));
+        });
+
+        routes = next;
+    }
+
     /**
      * Send a message.
      * 
@@ -269,11 +467,48 @@ public class ListenerRegistry {
 
         if(envelope.getExecuteTime() > 0) {
             final Envelope env = envelope;
-            futureExecutor.schedule(() -> {
-                reactor.notify(TopicUtils.getNotifyTopicString(env.getTopic(), env.getPartition()), Event.wrap(env));
+            Timer timer = getTimer();
+            if(timer == null) {
+                LOG.warn("Registry is not running, dropping delayed message on topic " + env.getTopic());
+                return;
+            }
+            timer.newTimeout((Timeout timeout) -> {
+                deliver(env);
             }, envelope.getExecuteTime(), TimeUnit.MILLISECONDS);
         } else if(envelope.getExecuteTime() >= 0) {
-            reactor.notify(TopicUtils.getNotifyTopicString(envelope.getTopic(), envelope.getPartition()), Event.wrap(envelope));
+            deliver(envelope);
+        }
+    }
+
+    /**
+     * Hand a message straight to the local listeners of a topic without 
+     * wrapping it in an envelope. This is only done when the current member 
+     * is the only subscriber of the topic and the topic has no interceptors, 
+     * since interceptors work on envelopes.
+     * 
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param message a message.
+     * @return true if the message was handed over, false if it has to go 
+     * through the regular send path.
+     */
+    public boolean sendLocal(String topic, String partition, Object message) {
+        Member[] route = getRoute(topic);
+        if(route.length != 1 || !me.equals(route[0]) || interceptors.containsKey(topic)) {
+            return false;
+        }
+
+        List<Consumer<Object>> listeners = localListeners.get(topic, partition);
+        if(!listeners.isEmpty()) {
+            dispatcher.dispatch(topic, listeners, message);
+        }
+        return true;
+    }
+
+    private void deliver(Envelope envelope) {
+        List<Consumer<Object>> listeners = localListeners.get(envelope.getTopic(), envelope.getPartition());
+        if(!listeners.isEmpty()) {
+            dispatcher.dispatch(envelope.getTopic(), listeners, envelope.getMessage());
         }
     }
 }
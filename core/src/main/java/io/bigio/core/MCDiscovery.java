@@ -37,6 +37,7 @@ import io.bigio.core.member.AbstractMember;
 import io.bigio.core.member.Member;
 import io.bigio.core.member.MemberHolder;
 import io.bigio.core.member.MemberKey;
+import io.bigio.core.member.RemoteMember;
 import io.bigio.core.member.RemoteMemberTCP;
 import io.bigio.core.member.RemoteMemberUDP;
 import io.bigio.util.NetworkUtil;
@@ -289,6 +290,9 @@ public class MCDiscovery extends Thread {
         for(String k : message.getTags().keySet()) {
             member.getTags().put(k, message.getTags().get(k));
         }
+        if(member instanceof RemoteMember) {
+            ((RemoteMember)member).updateEnvelopeVersion();
+        }
 
         memberHolder.updateMemberStatus(member);
     }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core;
+
+import io.bigio.KeyExtractor;
+import io.bigio.OverflowPolicy;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.function.Consumer;
+
+/**
+ * A bounded queue in front of a single local listener. Messages are drained 
+ * in order on a pool thread, so a slow listener only fills its own queue 
+ * instead of holding up the dispatcher. What happens when the queue is full 
+ * is decided by its overflow policy. The blocking policy is only used on 
+ * topics dispatched on threads of their own.
+ * 
+ * <p>
+ * With a key extractor the queue conflates: a message whose key is already 
+ * queued overwrites the queued message in place, so the listener only ever 
+ * receives the latest value of each key.
+ * </p>
+ * 
+ * @author Andy Trimble
+ */
+public final class Mailbox implements Consumer<Object>, Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Mailbox.class);
+
+    private final String topic;
+    private final String partition;
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final Consumer<Object> listener;
+    private final Executor executor;
+    private final KeyExtractor<Object> keys;
+
+    private final ArrayDeque<Object> queue;
+    private final LinkedHashMap<Object, Object> latest;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private boolean scheduled = false;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+
+    Mailbox(String topic, String partition, OverflowPolicy policy, int capacity, 
+            Consumer<Object> listener, Executor executor, KeyExtractor<Object> keys) {
+        this.topic = topic;
+        this.partition = partition;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.listener = listener;
+        this.executor = executor;
+        this.keys = keys;
+        if(keys == null) {
+            this.queue = new ArrayDeque<>(Math.min(capacity, 1024));
+            this.latest = null;
+        } else {
+            this.queue = null;
+            this.latest = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Queue a message for the listener.
+     * 
+     * @param message a message.
+     */
+    @Override
+    public void accept(Object message) {
+        // Batch window markers are never dropped or conflated, otherwise a 
+        // partial batch would wait for the next message.
+        boolean marker = message instanceof Batcher.Expiry;
+        Object key = keys == null ? null : marker ? new Object() : getKey(message);
+
+        lock.lock();
+        try {
+            if(key != null && latest.containsKey(key)) {
+                latest.put(key, message);
+                conflated.incrementAndGet();
+                return;
+            }
+
+            if(!marker && depth() >= capacity) {
+                switch(policy) {
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return;
+                    case DROP_OLDEST:
+                        poll();
+                        dropped.incrementAndGet();
+                        break;
+                    case CONFLATE:
+                        dropped.addAndGet(depth());
+                        clear();
+                        break;
+                    default:
+                        while(depth() >= capacity) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        break;
+                }
+            }
+
+            if(key != null) {
+                latest.put(key, message);
+            } else {
+                queue.add(message);
+            }
+
+            if(!scheduled) {
+                scheduled = true;
+                executor.execute(this);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drain the queue into the listener.
+     */
+    @Override
+    public void run() {
+        while(true) {
+            Object message;
+
+            lock.lock();
+            try {
+                message = poll();
+                if(message == null) {
+                    scheduled = false;
+                    return;
+                }
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            // A failing listener must not stop the drain, or the mailbox 
+            // would stay scheduled and never run again.
+            try {
+                listener.accept(message);
+            } catch(RuntimeException ex) {
+                LOG.error("Exception in listener on topic '" + topic + "'.", ex);
+            }
+        }
+    }
+
+    private Object getKey(Object message) {
+        try {
+            Object key = keys.getKey(message);
+            if(key != null) {
+                return key;
+            }
+        } catch(Exception ex) {
+            LOG.error("Cannot get the conflation key of a message on topic '" + topic + "'.", ex);
+        }
+
+        // A message without a key is never conflated.
+        return new Object();
+    }
+
+    private int depth() {
+        return keys == null ? queue.size() : latest.size();
+    }
+
+    private Object poll() {
+        if(keys == null) {
+            return queue.poll();
+        }
+
+        Iterator<Map.Entry<Object, Object>> iter = latest.entrySet().iterator();
+        if(!iter.hasNext()) {
+            return null;
+        }
+        Object message = iter.next().getValue();
+        iter.remove();
+        return message;
+    }
+
+    private void clear() {
+        if(keys == null) {
+            queue.clear();
+        } else {
+            latest.clear();
+        }
+    }
+
+    /**
+     * Get the topic of the listener.
+     * 
+     * @return the topic.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Get the partition of the listener.
+     * 
+     * @return the partition.
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * Get the overflow policy.
+     * 
+     * @return the overflow policy.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get the capacity of the queue.
+     * 
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of queued messages.
+     * 
+     * @return the number of queued messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return depth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages dropped or conflated away since the 
+     * listener was added.
+     * 
+     * @return the number of dropped messages.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of messages that were overwritten by a newer message 
+     * with the same key.
+     * 
+     * @return the number of conflated messages.
+     */
+    public long getConflated() {
+        return conflated.get();
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import io.bigio.DispatchStrategy;
+import io.bigio.KeyExtractor;
+import io.bigio.OverflowPolicy;
+import io.bigio.Parameters;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.function.Consumer;
+
+/**
+ * Hands messages to local listeners using the dispatch strategy chosen for 
+ * their topic. A topic's strategy is set through the API or the 
+ * io.bigio.dispatch.topic.&lt;topic&gt; property, and otherwise defaults to 
+ * io.bigio.dispatch.strategy. The default ring buffer strategy publishes 
+ * into preallocated slots, so dispatching through it allocates nothing.
+ * 
+ * <p>
+ * Listeners can also be put behind their own bounded queue, sized by 
+ * io.bigio.dispatch.queueSize or io.bigio.dispatch.topic.&lt;topic&gt;.queueSize 
+ * and with the overflow policy from io.bigio.dispatch.overflow or 
+ * io.bigio.dispatch.topic.&lt;topic&gt;.overflow. A size of zero, the default, 
+ * runs listeners directly on the dispatching thread. Topics given a key 
+ * extractor always get conflating queues, unbounded unless a size is set.
+ * </p>
+ * 
+ * @author Andy Trimble
+ */
+final class TopicDispatcher {
+
+    public static final String STRATEGY_PROPERTY = "io.bigio.dispatch.strategy";
+    public static final String TOPIC_STRATEGY_PROPERTY_PREFIX = "io.bigio.dispatch.topic.";
+    public static final String MAX_CONCURRENCY_PROPERTY = "io.bigio.dispatch.maxConcurrency";
+    public static final String TOPIC_MAX_CONCURRENCY_PROPERTY_SUFFIX = ".maxConcurrency";
+    public static final String RING_SIZE_PROPERTY = "io.bigio.dispatch.ringSize";
+    public static final String QUEUE_SIZE_PROPERTY = "io.bigio.dispatch.queueSize";
+    public static final String OVERFLOW_PROPERTY = "io.bigio.dispatch.overflow";
+    public static final String TOPIC_QUEUE_SIZE_PROPERTY_SUFFIX = ".queueSize";
+    public static final String TOPIC_OVERFLOW_PROPERTY_SUFFIX = ".overflow";
+    private static final String DEFAULT_STRATEGY = "RING_BUFFER";
+    private static final String DEFAULT_RING_SIZE = "1024";
+    private static final String DEFAULT_MAX_CONCURRENCY = "0";
+    private static final String DEFAULT_QUEUE_SIZE = "0";
+    private static final String DEFAULT_OVERFLOW = "BLOCK";
+
+    private static final Limit NO_LIMIT = new Limit(0);
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicDispatcher.class);
+
+    private final Disruptor<Slot> disruptor;
+    private final ExecutorService ringExecutor;
+    private final RingBuffer<Slot> ring;
+    private volatile boolean stopped = false;
+
+    private final DispatchStrategy defaultStrategy;
+    private final Map<String, DispatchStrategy> strategies = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> orderedExecutors = new ConcurrentHashMap<>();
+    private ExecutorService workStealingExecutor;
+    private ExecutorService virtualThreadExecutor;
+
+    private final int defaultMaxConcurrency;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> queueSizes = new ConcurrentHashMap<>();
+    private final Map<String, OverflowPolicy> overflowPolicies = new ConcurrentHashMap<>();
+    private final Map<String, KeyExtractor<Object>> keyExtractors = new ConcurrentHashMap<>();
+    private final List<Mailbox> mailboxes = new CopyOnWriteArrayList<>();
+    private ExecutorService mailboxExecutor;
+
+    TopicDispatcher() {
+        int ringSize = Integer.parseInt(Parameters.INSTANCE.getProperty(RING_SIZE_PROPERTY, DEFAULT_RING_SIZE));
+        ringExecutor = Executors.newSingleThreadExecutor(threadFactory("bigio-dispatch"));
+        disruptor = new Disruptor<>(Slot::new, ringSize, ringExecutor, 
+                ProducerType.MULTI, new BlockingWaitStrategy());
+        disruptor.handleEventsWith((Slot slot, long sequence, boolean endOfBatch) -> {
+            try {
+                deliver(slot.listeners, slot.message);
+            } catch(RuntimeException ex) {
+                LOG.error("Exception in listener.", ex);
+            } finally {
+                slot.listeners = null;
+                slot.message = null;
+            }
+        });
+        ring = disruptor.start();
+
+        defaultStrategy = parse(Parameters.INSTANCE.getProperty(STRATEGY_PROPERTY, DEFAULT_STRATEGY), 
+                DispatchStrategy.RING_BUFFER);
+        defaultMaxConcurrency = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                MAX_CONCURRENCY_PROPERTY, DEFAULT_MAX_CONCURRENCY));
+    }
+
+    /**
+     * Set the dispatch strategy of a topic.
+     * 
+     * @param topic a topic.
+     * @param strategy the strategy.
+     * @throws IllegalArgumentException if the topic has blocking queues and 
+     * the strategy dispatches on shared threads.
+     */
+    void setStrategy(String topic, DispatchStrategy strategy) {
+        OverflowPolicy policy = overflowPolicies.get(topic);
+        if(policy != null) {
+            checkOverflow(topic, strategy, policy, queueSizes.get(topic));
+        }
+        for(Mailbox mailbox : mailboxes) {
+            if(mailbox.getTopic().equals(topic)) {
+                checkOverflow(topic, strategy, mailbox.getPolicy(), mailbox.getCapacity());
+            }
+        }
+        strategies.put(topic, strategy);
+    }
+
+    /**
+     * Get the dispatch strategy of a topic.
+     * 
+     * @param topic a topic.
+     * @return the strategy.
+     */
+    DispatchStrategy getStrategy(String topic) {
+        DispatchStrategy strategy = strategies.get(topic);
+        if(strategy == null) {
+            strategy = parse(Parameters.INSTANCE.getProperty(TOPIC_STRATEGY_PROPERTY_PREFIX + topic), 
+                    defaultStrategy);
+            strategies.putIfAbsent(topic, strategy);
+        }
+        return strategy;
+    }
+
+    /**
+     * Limit how many messages on a topic are handed to its listeners at 
+     * once under the virtual thread strategy.
+     * 
+     * @param topic a topic.
+     * @param max the maximum number of messages in flight, or zero for no 
+     * limit.
+     */
+    void setMaxConcurrency(String topic, int max) {
+        limits.put(topic, max > 0 ? new Limit(max) : NO_LIMIT);
+    }
+
+    private Limit getLimit(String topic) {
+        Limit limit = limits.get(topic);
+        if(limit == null) {
+            int max = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                    TOPIC_STRATEGY_PROPERTY_PREFIX + topic + TOPIC_MAX_CONCURRENCY_PROPERTY_SUFFIX, 
+                    Integer.toString(defaultMaxConcurrency)));
+            limits.putIfAbsent(topic, max > 0 ? new Limit(max) : NO_LIMIT);
+            limit = limits.get(topic);
+        }
+        return limit;
+    }
+
+    /**
+     * Put the listeners of a topic that are added from now on behind their 
+     * own bounded queue.
+     * 
+     * @param topic a topic.
+     * @param policy what to do when a queue is full.
+     * @param capacity the capacity of each queue, or zero for no queue.
+     * @throws IllegalArgumentException if the policy blocks and the topic is 
+     * dispatched on shared threads.
+     */
+    void setQueue(String topic, OverflowPolicy policy, int capacity) {
+        checkOverflow(topic, getStrategy(topic), policy, capacity);
+        overflowPolicies.put(topic, policy);
+        queueSizes.put(topic, capacity);
+    }
+
+    /**
+     * Conflate the queued messages of the listeners of a topic that are 
+     * added from now on by key.
+     * 
+     * @param topic a topic.
+     * @param keys the key extractor.
+     */
+    void setKeyExtractor(String topic, KeyExtractor<Object> keys) {
+        keyExtractors.put(topic, keys);
+    }
+
+    /**
+     * Put a listener behind a bounded queue if one is configured for its 
+     * topic.
+     * 
+     * @param topic a topic.
+     * @param partition a partition.
+     * @param listener a listener.
+     * @return the listener to register.
+     * @throws IllegalArgumentException if the queue would block a topic 
+     * dispatched on shared threads.
+     */
+    Consumer<Object> queue(String topic, String partition, Consumer<Object> listener) {
+        Integer capacity = queueSizes.get(topic);
+        if(capacity == null) {
+            capacity = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                    TOPIC_STRATEGY_PROPERTY_PREFIX + topic + TOPIC_QUEUE_SIZE_PROPERTY_SUFFIX, 
+                    Parameters.INSTANCE.getProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE)));
+        }
+        KeyExtractor<Object> keys = keyExtractors.get(topic);
+        if(capacity <= 0) {
+            if(keys == null) {
+                return listener;
+            }
+            capacity = Integer.MAX_VALUE;
+        }
+
+        OverflowPolicy policy = overflowPolicies.get(topic);
+        if(policy == null) {
+            policy = parseOverflow(Parameters.INSTANCE.getProperty(
+                    TOPIC_STRATEGY_PROPERTY_PREFIX + topic + TOPIC_OVERFLOW_PROPERTY_SUFFIX, 
+                    Parameters.INSTANCE.getProperty(OVERFLOW_PROPERTY, DEFAULT_OVERFLOW)));
+        }
+        checkOverflow(topic, getStrategy(topic), policy, capacity);
+
+        Mailbox mailbox = new Mailbox(topic, partition, policy, capacity, listener, 
+                getMailboxExecutor(), keys);
+        mailboxes.add(mailbox);
+        return mailbox;
+    }
+
+    /**
+     * Forget the queues of the listeners removed from a topic and partition. 
+     * Messages already queued are still handed over.
+     * 
+     * @param topic a topic.
+     * @param partition a partition.
+     */
+    void release(String topic, String partition) {
+        mailboxes.removeIf((mailbox) -> 
+                mailbox.getTopic().equals(topic) && mailbox.getPartition().equals(partition));
+    }
+
+    /**
+     * Get the queues of the local listeners.
+     * 
+     * @return the listener queues.
+     */
+    Collection<Mailbox> getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * Hand a message on a topic to its listeners according to the topic's 
+     * strategy.
+     * 
+     * @param topic a topic.
+     * @param listeners the listeners matching the message.
+     * @param message the message.
+     */
+    void dispatch(String topic, List<Consumer<Object>> listeners, Object message) {
+        if(stopped) {
+            LOG.debug("Dropping message on topic " + topic + " after shutdown.");
+            return;
+        }
+
+        DispatchStrategy strategy = getStrategy(topic);
+        if(strategy == DispatchStrategy.RING_BUFFER) {
+            long sequence = ring.next();
+            try {
+                Slot slot = ring.get(sequence);
+                slot.listeners = listeners;
+                slot.message = message;
+            } finally {
+                ring.publish(sequence);
+            }
+            return;
+        }
+
+        Runnable delivery = () -> deliver(listeners, message);
+        switch(strategy) {
+            case ORDERED:
+                orderedExecutors.computeIfAbsent(topic, (t) -> 
+                        Executors.newSingleThreadExecutor(threadFactory("bigio-topic-" + t)))
+                        .execute(delivery);
+                break;
+            case WORK_STEALING:
+                getWorkStealingExecutor().execute(delivery);
+                break;
+            case VIRTUAL_THREAD:
+                dispatchVirtual(getLimit(topic), delivery);
+                break;
+            default:
+                delivery.run();
+                break;
+        }
+    }
+
+    /**
+     * Stop dispatching. Messages still in the ring buffer or in the 
+     * executors' queues are discarded, and messages dispatched from now on 
+     * are dropped.
+     */
+    synchronized void shutdown() {
+        stopped = true;
+
+        disruptor.halt();
+        ringExecutor.shutdownNow();
+        orderedExecutors.values().forEach(ExecutorService::shutdownNow);
+        orderedExecutors.clear();
+        if(workStealingExecutor != null) {
+            workStealingExecutor.shutdownNow();
+        }
+        if(mailboxExecutor != null) {
+            mailboxExecutor.shutdownNow();
+        }
+        if(virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdownNow();
+        }
+    }
+
+    private static void deliver(List<Consumer<Object>> listeners, Object message) {
+        for(Consumer<Object> listener : listeners) {
+            listener.accept(message);
+        }
+    }
+
+    private void dispatchVirtual(Limit limit, Runnable delivery) {
+        ExecutorService executor = getVirtualThreadExecutor();
+
+        if(limit == NO_LIMIT) {
+            executor.execute(delivery);
+            return;
+        }
+
+        limit.submit(executor, delivery);
+    }
+
+    private synchronized ExecutorService getWorkStealingExecutor() {
+        if(workStealingExecutor == null) {
+            workStealingExecutor = Executors.newWorkStealingPool();
+        }
+        return workStealingExecutor;
+    }
+
+    private synchronized ExecutorService getMailboxExecutor() {
+        if(mailboxExecutor == null) {
+            mailboxExecutor = Executors.newCachedThreadPool(threadFactory("bigio-mailbox"));
+        }
+        return mailboxExecutor;
+    }
+
+    private synchronized ExecutorService getVirtualThreadExecutor() {
+        if(virtualThreadExecutor == null) {
+            try {
+                virtualThreadExecutor = (ExecutorService)Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch(ReflectiveOperationException ex) {
+                LOG.info("Virtual threads are not available. Using a cached thread pool.");
+                virtualThreadExecutor = Executors.newCachedThreadPool(threadFactory("bigio-listener"));
+            }
+        }
+        return virtualThreadExecutor;
+    }
+
+    /**
+     * A full blocking queue holds the dispatching thread. Only the ordered 
+     * and virtual thread strategies give a topic threads of its own; on the 
+     * others, waiting would stall every topic sharing the thread.
+     */
+    private static void checkOverflow(String topic, DispatchStrategy strategy, OverflowPolicy policy, 
+            Integer capacity) {
+        if(policy != OverflowPolicy.BLOCK || capacity == null || capacity <= 0 || capacity == Integer.MAX_VALUE) {
+            return;
+        }
+        if(strategy != DispatchStrategy.ORDERED && strategy != DispatchStrategy.VIRTUAL_THREAD) {
+            throw new IllegalArgumentException("Topic '" + topic + "' is dispatched with " + strategy 
+                    + ", which shares its threads with other topics and cannot block on a full queue.");
+        }
+    }
+
+    private static DispatchStrategy parse(String value, DispatchStrategy defaultValue) {
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return DispatchStrategy.valueOf(value.trim().toUpperCase());
+        } catch(IllegalArgumentException ex) {
+            LOG.warn("Unknown dispatch strategy '" + value + "'. Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    private static OverflowPolicy parseOverflow(String value) {
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch(IllegalArgumentException ex) {
+            LOG.warn("Unknown overflow policy '" + value + "'. Using " + OverflowPolicy.BLOCK + ".");
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return (Runnable r) -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Caps the deliveries of a topic that run at once. Deliveries over the 
+     * cap wait in a queue and are started as running ones finish, so a slow 
+     * topic never holds back the thread that dispatches it.
+     */
+    private static final class Limit {
+        private final Semaphore permits;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+        Limit(int max) {
+            permits = new Semaphore(max);
+        }
+
+        void submit(ExecutorService executor, Runnable delivery) {
+            pending.offer(delivery);
+            drain(executor);
+        }
+
+        private void drain(ExecutorService executor) {
+            // A finishing delivery releases its permit before draining, so 
+            // a delivery queued while every permit was taken is never missed.
+            while(!pending.isEmpty() && permits.tryAcquire()) {
+                Runnable next = pending.poll();
+                if(next == null) {
+                    permits.release();
+                    continue;
+                }
+
+                try {
+                    executor.execute(() -> {
+                        try {
+                            next.run();
+                        } finally {
+                            permits.release();
+                            drain(executor);
+                        }
+                    });
+                } catch(RuntimeException ex) {
+                    permits.release();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * A preallocated ring buffer entry.
+     */
+    private static final class Slot {
+        private List<Consumer<Object>> listeners;
+        private Object message;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core;
+
+import io.bigio.util.TopicUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An index of values registered against a topic and partition. Topics are 
+ * matched exactly. Within a topic, literal partitions are looked up in a 
+ * map, and only partitions that really are patterns are compiled and 
+ * matched, so a lookup costs the same however many values are registered 
+ * on other topics.
+ * 
+ * <p>
+ * The index is copy-on-write: lookups take no locks, and registrations are 
+ * expected to be rare compared to lookups.
+ * </p>
+ * 
+ * @author Andy Trimble
+ * @param <T> the type of the indexed values
+ */
+final class TopicIndex<T> {
+
+    private static final String PATTERN_CHARACTERS = "\\[](){}.*+?^$|";
+
+    private volatile Map<String, Partitions<T>> topics = Collections.emptyMap();
+
+    /**
+     * Register a value on a topic and partition.
+     * 
+     * @param topic a topic.
+     * @param partition a partition, either literal or a regular expression.
+     * @param value the value.
+     */
+    synchronized void add(String topic, String partition, T value) {
+        Map<String, Partitions<T>> next = new HashMap<>(topics);
+        Partitions<T> current = next.get(topic);
+        next.put(topic, current == null 
+                ? new Partitions<T>().with(partition, value) 
+                : current.with(partition, value));
+        topics = next;
+    }
+
+    /**
+     * Remove every value registered on a topic and partition.
+     * 
+     * @param topic a topic.
+     * @param partition the partition the values were registered with.
+     */
+    synchronized void removeAll(String topic, String partition) {
+        Partitions<T> current = topics.get(topic);
+        if(current == null) {
+            return;
+        }
+
+        Map<String, Partitions<T>> next = new HashMap<>(topics);
+        Partitions<T> remaining = current.without(partition);
+        if(remaining.isEmpty()) {
+            next.remove(topic);
+        } else {
+            next.put(topic, remaining);
+        }
+        topics = next;
+    }
+
+    /**
+     * Get the values that match a topic and partition. The returned list 
+     * may be shared and must not be modified.
+     * 
+     * @param topic a topic.
+     * @param partition the partition of a message.
+     * @return the matching values.
+     */
+    List<T> get(String topic, String partition) {
+        Partitions<T> partitions = topics.get(topic);
+        if(partitions == null) {
+            return Collections.emptyList();
+        }
+        return partitions.get(partition);
+    }
+
+    static boolean isPattern(String partition) {
+        for(int i = 0; i < partition.length(); ++i) {
+            if(PATTERN_CHARACTERS.indexOf(partition.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The immutable partition index of one topic.
+     */
+    private static final class Partitions<T> {
+        private final Map<String, List<T>> exact;
+        private final List<T> all;
+        private final Map<String, PatternEntry<T>> patterns;
+
+        Partitions() {
+            this(Collections.emptyMap(), Collections.emptyList(), Collections.emptyMap());
+        }
+
+        private Partitions(Map<String, List<T>> exact, List<T> all, Map<String, PatternEntry<T>> patterns) {
+            this.exact = exact;
+            this.all = all;
+            this.patterns = patterns;
+        }
+
+        Partitions<T> with(String partition, T value) {
+            if(TopicUtils.ALL_PARTITIONS.equals(partition)) {
+                return new Partitions<>(exact, append(all, value), patterns);
+            } else if(isPattern(partition)) {
+                Map<String, PatternEntry<T>> next = new HashMap<>(patterns);
+                PatternEntry<T> entry = next.get(partition);
+                next.put(partition, new PatternEntry<>(
+                        entry == null ? Pattern.compile(partition) : entry.pattern, 
+                        append(entry == null ? Collections.emptyList() : entry.values, value)));
+                return new Partitions<>(exact, all, next);
+            } else {
+                Map<String, List<T>> next = new HashMap<>(exact);
+                List<T> values = next.get(partition);
+                next.put(partition, append(values == null ? Collections.emptyList() : values, value));
+                return new Partitions<>(next, all, patterns);
+            }
+        }
+
+        Partitions<T> without(String partition) {
+            if(TopicUtils.ALL_PARTITIONS.equals(partition)) {
+                return new Partitions<>(exact, Collections.emptyList(), patterns);
+            } else if(isPattern(partition)) {
+                Map<String, PatternEntry<T>> next = new HashMap<>(patterns);
+                next.remove(partition);
+                return new Partitions<>(exact, all, next);
+            } else {
+                Map<String, List<T>> next = new HashMap<>(exact);
+                next.remove(partition);
+                return new Partitions<>(next, all, patterns);
+            }
+        }
+
+        boolean isEmpty() {
+            return exact.isEmpty() && all.isEmpty() && patterns.isEmpty();
+        }
+
+        List<T> get(String partition) {
+            List<T> matched = exact.get(partition);
+            if(matched == null) {
+                matched = Collections.emptyList();
+            }
+
+            if(patterns.isEmpty()) {
+                if(all.isEmpty()) {
+                    return matched;
+                } else if(matched.isEmpty()) {
+                    return all;
+                }
+            }
+
+            List<T> ret = new ArrayList<>(matched);
+            ret.addAll(all);
+            for(PatternEntry<T> entry : patterns.values()) {
+                if(entry.pattern.matcher(partition).matches()) {
+                    ret.addAll(entry.values);
+                }
+            }
+            return ret;
+        }
+
+        private static <T> List<T> append(List<T> values, T value) {
+            List<T> ret = new ArrayList<>(values.size() + 1);
+            ret.addAll(values);
+            ret.add(value);
+            return Collections.unmodifiableList(ret);
+        }
+    }
+
+    private static final class PatternEntry<T> {
+        private final Pattern pattern;
+        private final List<T> values;
+
+        PatternEntry(Pattern pattern, List<T> values) {
+            this.pattern = pattern;
+            this.values = values;
+        }
+    }
+}
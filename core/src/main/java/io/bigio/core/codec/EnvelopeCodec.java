@@ -31,112 +31,280 @@ package io.bigio.core.codec;
 
 import io.bigio.core.Envelope;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.ArrayBufferInput;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.OutputStreamBufferOutput;
 
 /**
  * This is a class for decoding envelope messages.
  * 
+ * <p>
+ * Version 1 envelopes start with the four octets of the sender's address 
+ * and carry every header string in full. Version 2 envelopes start with a 
+ * negative marker and carry the sender key, topic, partition and class name 
+ * as references: a positive id already defined on the connection, a 
+ * negated id followed by the string that defines it, or zero followed by a 
+ * string that is not to be remembered. Encrypted version 2 envelopes name 
+ * the session key they are encrypted with and carry the wrapped key only 
+ * when the receiver may not have it yet.
+ * </p>
+ * 
+ * <p>
+ * Batch envelopes are version 2 envelopes with their own marker. Their 
+ * payload is an array of message payloads that share the header.
+ * </p>
+ * 
+ * <p>
+ * Members advertise the newest version they read under {@link #VERSION_TAG} 
+ * in their gossip tags. Members that do not are sent version 1 envelopes.
+ * </p>
+ * 
  * @author Andy Trimble
  */
 public class EnvelopeCodec {
+
+    /**
+     * The gossip tag a member advertises its envelope version under.
+     */
+    public static final String VERSION_TAG = "io.bigio.envelope.version";
+
+    /**
+     * The newest envelope version this codec reads and writes.
+     */
+    public static final int CURRENT_VERSION = 2;
     
     private static final MessagePack msgPack = new MessagePack();
 
+    private static final int VERSION_2 = -2;
+    private static final int VERSION_2_BATCH = -3;
+
+    // Payloads are written straight through to the frame, so the packer 
+    // only needs room for the header fields.
+    private static final MessagePack.Config PACKER_CONFIG = new MessagePack.ConfigBuilder()
+            .packerBufferSize(512)
+            .build();
+
+    /**
+     * How header strings are written into a version 2 envelope.
+     */
+    enum HeaderMode {
+        /** Every string in full, nothing remembered by the receiver. */
+        LITERAL,
+        /** Every string in full along with the id it defines. */
+        DEFINE,
+        /** Ids only, for receivers that already have the definitions. */
+        COMPACT
+    }
+
     private EnvelopeCodec() {
 
     }
 
     /**
-     * Decode a message envelope.
+     * Decode a message envelope without copying the payload. The payload is 
+     * left in the envelope as a retained slice of the frame, so the caller 
+     * keeps ownership of the frame and the envelope must be released (or its 
+     * payload read) once it is done with.
      * 
      * @param bytes the raw message.
      * @return the decoded message.
      * @throws IOException in case of a decode error.
      */
     public static Envelope decode(ByteBuf bytes) throws IOException {
-        MessageUnpacker unpacker = msgPack.newUnpacker(new ByteBufInputStream(bytes));
-        Envelope message = decode(unpacker);
-        return message;
+        return decode(bytes, null);
     }
-    
+
     /**
-     * Decode a message envelope.
+     * Decode a message envelope without copying the payload, resolving 
+     * header references against the dictionary of the connection the 
+     * envelope arrived on. Definitions carried by the envelope are added to 
+     * the dictionary.
      * 
      * @param bytes the raw message.
+     * @param dictionary the connection's header dictionary, or null if the 
+     * connection does not keep one.
      * @return the decoded message.
      * @throws IOException in case of a decode error.
      */
-    public static Envelope decode(byte[] bytes) throws IOException {
-        MessageUnpacker unpacker = msgPack.newUnpacker(bytes);
-        Envelope message = decode(unpacker);
+    public static Envelope decode(ByteBuf bytes, Map<Integer, String> dictionary) throws IOException {
+        MessageUnpacker unpacker = new MessageUnpacker(
+                new ArrayBufferInput(MessageBuffer.wrap(bytes.nioBuffer())));
+        Envelope message = decodeHeader(unpacker, dictionary);
+
+        MessageFormat format = unpacker.getNextFormat();
+        if(format == MessageFormat.BIN8 || 
+                format == MessageFormat.BIN16 || 
+                format == MessageFormat.BIN32) {
+            int length = unpacker.unpackBinaryHeader();
+            int offset = bytes.readerIndex() + (int)unpacker.getTotalReadBytes();
+            message.setPayloadBuffer(bytes.slice(offset, length).retain());
+        } else {
+            message.setPayload(unpackBytes(unpacker));
+        }
+
         return message;
     }
-
+    
     /**
      * Decode a message envelope.
      * 
-     * @param unpacker a MsgPack object containing the raw message.
+     * @param bytes the raw message.
      * @return the decoded message.
      * @throws IOException in case of a decode error.
      */
-    private static Envelope decode(MessageUnpacker unpacker) throws IOException {
+    public static Envelope decode(byte[] bytes) throws IOException {
+        MessageUnpacker unpacker = msgPack.newUnpacker(bytes);
+        Envelope message = decodeHeader(unpacker, null);
+        message.setPayload(unpackBytes(unpacker));
+        return message;
+    }
+
+    private static Envelope decodeHeader(MessageUnpacker unpacker, Map<Integer, String> dictionary) throws IOException {
 
         Envelope message = new Envelope();
 
-        StringBuilder keyBuilder = new StringBuilder();
-        keyBuilder
-                .append(unpacker.unpackInt())
-                .append(".")
-                .append(unpacker.unpackInt())
-                .append(".")
-                .append(unpacker.unpackInt())
-                .append(".")
-                .append(unpacker.unpackInt())
-                .append(":")
-                .append(unpacker.unpackInt())
-                .append(":")
-                .append(unpacker.unpackInt());
-        message.setSenderKey(keyBuilder.toString());
+        int first = unpacker.unpackInt();
+        boolean compact = first == VERSION_2 || first == VERSION_2_BATCH;
+        message.setBatch(first == VERSION_2_BATCH);
+
+        if(compact) {
+            message.setSenderKey(unpackRef(unpacker, dictionary));
+        } else {
+            StringBuilder keyBuilder = new StringBuilder();
+            keyBuilder
+                    .append(first)
+                    .append(".")
+                    .append(unpacker.unpackInt())
+                    .append(".")
+                    .append(unpacker.unpackInt())
+                    .append(".")
+                    .append(unpacker.unpackInt())
+                    .append(":")
+                    .append(unpacker.unpackInt())
+                    .append(":")
+                    .append(unpacker.unpackInt());
+            message.setSenderKey(keyBuilder.toString());
+        }
         message.setEncrypted(unpacker.unpackBoolean());
         if(message.isEncrypted()) {
-            int length = unpacker.unpackArrayHeader();
-            byte[] key = new byte[length];
-            for(int i = 0; i < length; ++i) {
-                key[i] = unpacker.unpackByte();
+            if(compact) {
+                message.setKeyId(unpacker.unpackInt());
+                if(unpacker.getNextFormat() == MessageFormat.NIL) {
+                    unpacker.unpackNil();
+                } else {
+                    message.setKey(unpackBytes(unpacker));
+                }
+            } else {
+                message.setKey(unpackBytes(unpacker));
             }
-            message.setKey(key);
         }
         message.setExecuteTime(unpacker.unpackInt());
         message.setMillisecondsSinceMidnight(unpacker.unpackInt());
-        message.setTopic(unpacker.unpackString());
-        message.setPartition(unpacker.unpackString());
-        message.setClassName(unpacker.unpackString());
-
-        if(unpacker.getNextFormat() == MessageFormat.BIN16 || 
-                unpacker.getNextFormat() == MessageFormat.BIN32 || 
-                unpacker.getNextFormat() == MessageFormat.BIN8) {
-            int length = unpacker.unpackBinaryHeader();
-            byte[] payload = new byte[length];
-            unpacker.readPayload(payload);
-            message.setPayload(payload);
+        if(compact) {
+            message.setTopic(unpackRef(unpacker, dictionary));
+            message.setPartition(unpackRef(unpacker, dictionary));
+            message.setClassName(unpackRef(unpacker, dictionary));
         } else {
-            int length = unpacker.unpackArrayHeader();
-            byte[] payload = new byte[length];
-            for(int i = 0; i < length; ++i) {
-                payload[i] = unpacker.unpackByte();
-            }
-            message.setPayload(payload);
+            message.setTopic(unpacker.unpackString());
+            message.setPartition(unpacker.unpackString());
+            message.setClassName(unpacker.unpackString());
         }
 
         return message;
     }
 
+    private static String unpackRef(MessageUnpacker unpacker, Map<Integer, String> dictionary) throws IOException {
+        int ref = unpacker.unpackInt();
+
+        if(ref == 0) {
+            return unpacker.unpackString();
+        } else if(ref < 0) {
+            String value = unpacker.unpackString();
+            if(dictionary != null) {
+                dictionary.put(-ref, value);
+            }
+            return value;
+        }
+
+        String value = dictionary == null ? null : dictionary.get(ref);
+        if(value == null) {
+            throw new IOException("Undefined header reference " + ref);
+        }
+        return value;
+    }
+
+    private static byte[] unpackBytes(MessageUnpacker unpacker) throws IOException {
+        MessageFormat format = unpacker.getNextFormat();
+
+        if(format == MessageFormat.BIN8 || 
+                format == MessageFormat.BIN16 || 
+                format == MessageFormat.BIN32) {
+            int length = unpacker.unpackBinaryHeader();
+            byte[] bytes = new byte[length];
+            unpacker.readPayload(bytes);
+            return bytes;
+        } 
+        
+        // Older senders pack raw bytes as an array of ints.
+        int length = unpacker.unpackArrayHeader();
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; ++i) {
+            bytes[i] = unpacker.unpackByte();
+        }
+        return bytes;
+    }
+
+    /**
+     * Pack the payloads of several messages into the payload of a batch 
+     * envelope.
+     * 
+     * @param payloads the message payloads.
+     * @return the batch payload.
+     * @throws IOException in case of an encode error.
+     */
+    public static byte[] encodeBatch(List<byte[]> payloads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePacker packer = msgPack.newPacker(out);
+        packer.packArrayHeader(payloads.size());
+        for(byte[] payload : payloads) {
+            packer.packBinaryHeader(payload.length);
+            packer.writePayload(payload);
+        }
+        packer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Split the payload of a batch envelope into the payloads of its 
+     * messages.
+     * 
+     * @param payload the batch payload.
+     * @return the message payloads, in the order they were sent.
+     * @throws IOException in case of a decode error.
+     */
+    public static List<byte[]> decodeBatch(byte[] payload) throws IOException {
+        MessageUnpacker unpacker = msgPack.newUnpacker(payload);
+        int count = unpacker.unpackArrayHeader();
+        List<byte[]> ret = new ArrayList<>(count);
+        for(int i = 0; i < count; ++i) {
+            ret.add(unpackBytes(unpacker));
+        }
+        return ret;
+    }
+
     /**
      * Encode a message envelope.
      * 
@@ -145,43 +313,163 @@ public class EnvelopeCodec {
      * @throws IOException in case of an encode error.
      */
     public static byte[] encode(Envelope message) throws IOException {
-        ByteArrayOutputStream msgBuffer = new ByteArrayOutputStream();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        
-        MessagePacker packer = msgPack.newPacker(msgBuffer);
+        ByteBuf buf = encode(message, UnpooledByteBufAllocator.DEFAULT);
+        try {
+            byte[] ret = new byte[buf.readableBytes()];
+            buf.readBytes(ret);
+            return ret;
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Encode a message envelope directly into a buffer taken from the 
+     * supplied allocator. The returned frame, including its length prefix, 
+     * is owned by the caller.
+     * 
+     * @param message a message to encode.
+     * @param alloc the allocator to take the frame from.
+     * @return the encoded message.
+     * @throws IOException in case of an encode error.
+     */
+    public static ByteBuf encode(Envelope message, ByteBufAllocator alloc) throws IOException {
+        return encode(message, alloc, null, HeaderMode.LITERAL);
+    }
+
+    /**
+     * Encode a message envelope with its header strings referenced by id.
+     * 
+     * @param message a message to encode.
+     * @param alloc the allocator to take the frame from.
+     * @param ids the dictionary ids of the sender key, topic, partition and 
+     * class name, zero for strings that have no id.
+     * @param mode how the header strings are written.
+     * @return the encoded message.
+     * @throws IOException in case of an encode error.
+     */
+    static ByteBuf encode(Envelope message, ByteBufAllocator alloc, int[] ids, HeaderMode mode) throws IOException {
+        ByteBuf buf = alloc.ioBuffer(estimateSize(message, mode));
+
+        try {
+            buf.writeShort(0);
+
+            MessagePacker packer = new MessagePacker(new OutputStreamBufferOutput(new ByteBufOutputStream(buf)), PACKER_CONFIG);
+
+            packer.packInt(message.isBatch() ? VERSION_2_BATCH : VERSION_2);
+            packRef(packer, message.getSenderKey(), ids == null ? 0 : ids[0], mode);
+
+            packer.packBoolean(message.isEncrypted());
+            if(message.isEncrypted()) {
+                packer.packInt(message.getKeyId());
+                if(message.getKey() == null) {
+                    packer.packNil();
+                } else {
+                    packer.packBinaryHeader(message.getKey().length);
+                    packer.writePayload(message.getKey());
+                }
+            }
+            packer.packInt(message.getExecuteTime());
+            packer.packInt(message.getMillisecondsSinceMidnight());
+            packRef(packer, message.getTopic(), ids == null ? 0 : ids[1], mode);
+            packRef(packer, message.getPartition(), ids == null ? 0 : ids[2], mode);
+            packRef(packer, message.getClassName(), ids == null ? 0 : ids[3], mode);
+            packer.packBinaryHeader(message.getPayload().length);
+            packer.writePayload(message.getPayload());
+
+            packer.flush();
+
+            buf.setShort(0, buf.readableBytes() - 2);
+        } catch(IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+
+        return buf;
+    }
+
+    /**
+     * Encode an unencrypted message envelope as version 1 frames, for 
+     * members that have not advertised version 2. A batch envelope is 
+     * written as one frame per message, each with its own length prefix.
+     * 
+     * @param message a message to encode.
+     * @param alloc the allocator to take the frames from.
+     * @return the encoded frames, back to back.
+     * @throws IOException in case of an encode error, or if the message is 
+     * encrypted.
+     */
+    static ByteBuf encodeVersion1(Envelope message, ByteBufAllocator alloc) throws IOException {
+        if(message.isEncrypted()) {
+            throw new IOException("Encrypted envelopes cannot be sent as version 1.");
+        }
 
         String[] keys = message.getSenderKey().split(":");
         String[] ip = keys[0].split("\\.");
-        packer.packInt(Integer.parseInt(ip[0]));
-        packer.packInt(Integer.parseInt(ip[1]));
-        packer.packInt(Integer.parseInt(ip[2]));
-        packer.packInt(Integer.parseInt(ip[3]));
-        packer.packInt(Integer.parseInt(keys[1]));
-        packer.packInt(Integer.parseInt(keys[2]));
-
-        packer.packBoolean(message.isEncrypted());
-        if(message.isEncrypted()) {
-            packer.packArrayHeader(message.getKey().length);
-            for(byte b : message.getKey()) {
-                packer.packByte(b);
+        List<byte[]> payloads = message.isBatch() 
+                ? decodeBatch(message.getPayload()) 
+                : Collections.singletonList(message.getPayload());
+
+        int header = estimateSize(message, HeaderMode.LITERAL) - message.getPayload().length;
+        ByteBuf buf = alloc.ioBuffer(header * payloads.size() + message.getPayload().length);
+
+        try {
+            for(byte[] payload : payloads) {
+                int start = buf.writerIndex();
+                buf.writeShort(0);
+
+                MessagePacker packer = new MessagePacker(new OutputStreamBufferOutput(new ByteBufOutputStream(buf)), PACKER_CONFIG);
+
+                packer.packInt(Integer.parseInt(ip[0]));
+                packer.packInt(Integer.parseInt(ip[1]));
+                packer.packInt(Integer.parseInt(ip[2]));
+                packer.packInt(Integer.parseInt(ip[3]));
+                packer.packInt(Integer.parseInt(keys[1]));
+                packer.packInt(Integer.parseInt(keys[2]));
+                packer.packBoolean(false);
+                packer.packInt(message.getExecuteTime());
+                packer.packInt(message.getMillisecondsSinceMidnight());
+                packer.packString(message.getTopic());
+                packer.packString(message.getPartition());
+                packer.packString(message.getClassName());
+                packer.packBinaryHeader(payload.length);
+                packer.writePayload(payload);
+
+                packer.flush();
+
+                buf.setShort(start, buf.writerIndex() - start - 2);
             }
-        }
-        packer.packInt(message.getExecuteTime());
-        packer.packInt(message.getMillisecondsSinceMidnight());
-        packer.packString(message.getTopic());
-        packer.packString(message.getPartition());
-        packer.packString(message.getClassName());
-        packer.packArrayHeader(message.getPayload().length);
-        for(byte b : message.getPayload()) {
-            packer.packByte(b);
+        } catch(IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
         }
 
-        packer.close();
+        return buf;
+    }
 
-        out.write((short)msgBuffer.size() >>> 8);
-        out.write((short)msgBuffer.size());
-        msgBuffer.writeTo(out);
+    private static void packRef(MessagePacker packer, String value, int id, HeaderMode mode) throws IOException {
+        if(id == 0 || mode == HeaderMode.LITERAL) {
+            packer.packInt(0);
+            packer.packString(value);
+        } else if(mode == HeaderMode.DEFINE) {
+            packer.packInt(-id);
+            packer.packString(value);
+        } else {
+            packer.packInt(id);
+        }
+    }
 
-        return out.toByteArray();
+    private static int estimateSize(Envelope message, HeaderMode mode) {
+        int size = 64 + message.getPayload().length;
+        if(mode != HeaderMode.COMPACT) {
+            size += message.getSenderKey().length()
+                    + message.getTopic().length()
+                    + message.getPartition().length()
+                    + message.getClassName().length();
+        }
+        if(message.isEncrypted() && message.getKey() != null) {
+            size += message.getKey().length;
+        }
+        return size;
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core.codec;
+
+import io.bigio.core.Envelope;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * An envelope waiting to be written to one or more members. Each encoding 
+ * of the envelope is produced the first time a member asks for it and then 
+ * shared by every other member that needs the same bytes.
+ * 
+ * @author Andy Trimble
+ */
+public class EnvelopeFrame {
+
+    private final Envelope envelope;
+
+    private int[] ids = null;
+
+    private ByteBuf literal = null;
+    private ByteBuf defining = null;
+    private ByteBuf compact = null;
+    private ByteBuf version1 = null;
+
+    /**
+     * Constructor.
+     * 
+     * @param envelope a fully populated envelope.
+     */
+    public EnvelopeFrame(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * Get the dictionary ids of the header strings. Ids are only assigned 
+     * once a connection asks for a defining or compact encoding, so frames 
+     * only ever sent literally do not use up the dictionary.
+     * 
+     * @return the ids of the sender key, topic, partition and class name.
+     */
+    private synchronized int[] ids() {
+        if(ids == null) {
+            ids = new int[] {
+                HeaderDictionary.getId(envelope.getSenderKey()),
+                HeaderDictionary.getId(envelope.getTopic()),
+                HeaderDictionary.getId(envelope.getPartition()),
+                HeaderDictionary.getId(envelope.getClassName())
+            };
+        }
+        return ids;
+    }
+
+    /**
+     * Determine whether the envelope is encrypted. Encrypted envelopes are 
+     * only ever sent as version 2.
+     * 
+     * @return true if the envelope is encrypted.
+     */
+    public boolean isEncrypted() {
+        return envelope.isEncrypted();
+    }
+
+    /**
+     * Determine whether a connection already knows every header string 
+     * this envelope refers to.
+     * 
+     * @param defined the ids defined on the connection.
+     * @return true if the compact encoding can be sent.
+     */
+    public boolean isDefined(Set<Integer> defined) {
+        for(int id : ids()) {
+            if(id != 0 && !defined.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that the defining encoding has been written to a connection.
+     * 
+     * @param defined the ids defined on the connection.
+     */
+    public void define(Set<Integer> defined) {
+        for(int id : ids()) {
+            if(id != 0) {
+                defined.add(id);
+            }
+        }
+    }
+
+    /**
+     * Get the encoding carrying every header string in full.
+     * 
+     * @param alloc the allocator to use if the frame is not yet encoded.
+     * @return the frame, still owned by this object.
+     * @throws IOException in case of an encode error.
+     */
+    public synchronized ByteBuf getLiteral(ByteBufAllocator alloc) throws IOException {
+        if(literal == null) {
+            literal = EnvelopeCodec.encode(envelope, alloc, null, EnvelopeCodec.HeaderMode.LITERAL);
+        }
+        return literal;
+    }
+
+    /**
+     * Get the encoding that defines its header strings for the receiving 
+     * connection.
+     * 
+     * @param alloc the allocator to use if the frame is not yet encoded.
+     * @return the frame, still owned by this object.
+     * @throws IOException in case of an encode error.
+     */
+    public synchronized ByteBuf getDefining(ByteBufAllocator alloc) throws IOException {
+        if(defining == null) {
+            defining = EnvelopeCodec.encode(envelope, alloc, ids(), EnvelopeCodec.HeaderMode.DEFINE);
+        }
+        return defining;
+    }
+
+    /**
+     * Get the encoding that refers to its header strings by id.
+     * 
+     * @param alloc the allocator to use if the frame is not yet encoded.
+     * @return the frame, still owned by this object.
+     * @throws IOException in case of an encode error.
+     */
+    public synchronized ByteBuf getCompact(ByteBufAllocator alloc) throws IOException {
+        if(compact == null) {
+            compact = EnvelopeCodec.encode(envelope, alloc, ids(), EnvelopeCodec.HeaderMode.COMPACT);
+        }
+        return compact;
+    }
+
+    /**
+     * Get the version 1 encoding, for members that have not advertised 
+     * version 2. A batch is split into one length prefixed frame per 
+     * message.
+     * 
+     * @param alloc the allocator to use if the frame is not yet encoded.
+     * @return the frames, still owned by this object.
+     * @throws IOException in case of an encode error.
+     */
+    public synchronized ByteBuf getVersion1(ByteBufAllocator alloc) throws IOException {
+        if(version1 == null) {
+            version1 = EnvelopeCodec.encodeVersion1(envelope, alloc);
+        }
+        return version1;
+    }
+
+    /**
+     * Release every encoding produced for this envelope.
+     */
+    public synchronized void release() {
+        if(literal != null) {
+            literal.release();
+            literal = null;
+        }
+        if(defining != null) {
+            defining.release();
+            defining = null;
+        }
+        if(compact != null) {
+            compact.release();
+            compact = null;
+        }
+        if(version1 != null) {
+            version1.release();
+            version1 = null;
+        }
+    }
+}
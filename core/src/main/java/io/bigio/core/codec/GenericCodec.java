@@ -30,13 +30,22 @@
 package io.bigio.core.codec;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This is a class for decoding generic messages. Generic messages have the
  * encoding/decoding logic injected at runtime using ASM. This class
- * reflectively calls the injected decode method.
+ * calls the injected decode method. Message types are resolved once by 
+ * name and cached along with a constructor handle. Names that cannot be 
+ * resolved are not cached, so arbitrary class names arriving off the wire 
+ * cannot grow the cache.
  * 
  * @author Andy Trimble
  */
@@ -44,6 +53,16 @@ public class GenericCodec {
 
     private static final Logger LOG = LoggerFactory.getLogger(GenericCodec.class);
 
+    private static final ConcurrentMap<String, MessageType> types = new ConcurrentHashMap<>();
+
+    private static final ClassValue<Boolean> encodable = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> clazz) {
+            return clazz.getAnnotation(io.bigio.Message.class) != null 
+                    && BigIOMessage.class.isAssignableFrom(clazz);
+        }
+    };
+
     private GenericCodec() {
         
     }
@@ -57,26 +76,19 @@ public class GenericCodec {
      * @throws IOException in case of a decoding error.
      */
     public static Object decode(String className, byte[] bytes) throws IOException {
-
-        try {
-            Class clazz = Class.forName(className);
-
-            if(clazz.getAnnotation(io.bigio.Message.class) != null) {
-                try {
-                    Object obj = clazz.newInstance();
-                    ((BigIOMessage)obj).bigiodecode(bytes);
-                    return obj;
-                } catch (IllegalAccessException ex) {
-                    LOG.error("Illegal method access.", ex);
-                } catch (InstantiationException ex) {
-                    LOG.error("Cannot create new message.", ex);
-                }
+        MessageType type = types.get(className);
+        if(type == null) {
+            type = types.computeIfAbsent(className, GenericCodec::resolve);
+            if(type == null) {
+                return null;
             }
-        } catch(ClassNotFoundException ex) {
-            LOG.error("Cannot find message type", ex);
         }
 
-        return null;
+        BigIOMessage obj = type.newInstance();
+        if(obj != null) {
+            obj.bigiodecode(bytes);
+        }
+        return obj;
     }
 
     /**
@@ -88,7 +100,7 @@ public class GenericCodec {
      */
     public static byte[] encode(Object message) throws IOException {
 
-        if(message.getClass().getAnnotation(io.bigio.Message.class) != null) {
+        if(encodable.get(message.getClass())) {
             try {
                 byte[] ret;
                 ret = (byte[])((BigIOMessage)message).bigioencode();
@@ -100,4 +112,59 @@ public class GenericCodec {
 
         return null;
     }
+
+    private static MessageType resolve(String className) {
+        try {
+            Class<?> clazz = Class.forName(className);
+
+            if(clazz.getAnnotation(io.bigio.Message.class) == null) {
+                LOG.error("Type " + className + " is not a message.");
+                return null;
+            }
+
+            if(!BigIOMessage.class.isAssignableFrom(clazz)) {
+                LOG.error("Message type " + className + " has not been instrumented.");
+                return null;
+            }
+
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup()
+                    .unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(BigIOMessage.class));
+            return new MessageType(handle);
+        } catch(ClassNotFoundException ex) {
+            LOG.error("Cannot find message type", ex);
+        } catch(NoSuchMethodException ex) {
+            LOG.error("Cannot create new message.", ex);
+        } catch(IllegalAccessException | SecurityException ex) {
+            LOG.error("Illegal method access.", ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * A resolved message type.
+     */
+    private static final class MessageType {
+
+        private final MethodHandle constructor;
+
+        MessageType(MethodHandle constructor) {
+            this.constructor = constructor;
+        }
+
+        BigIOMessage newInstance() {
+            try {
+                return (BigIOMessage)constructor.invokeExact();
+            } catch(RuntimeException | Error ex) {
+                throw ex;
+            } catch(Throwable ex) {
+                LOG.error("Cannot create new message.", ex);
+            }
+
+            return null;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core.codec;
+
+import io.bigio.Parameters;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns process-wide ids to the strings found in envelope headers. The 
+ * ids are only meaningful to a receiver once they have been defined on the 
+ * connection they arrive on. Ids are only requested for envelopes sent over 
+ * a stream connection, so literal-only traffic such as UDP never fills the 
+ * dictionary.
+ * 
+ * @author Andy Trimble
+ */
+final class HeaderDictionary {
+
+    private static final String MAX_SIZE_PROPERTY = "io.bigio.envelope.dictionarySize";
+    private static final String DEFAULT_MAX_SIZE = "4096";
+
+    private static final int maxSize = Integer.parseInt(
+            Parameters.INSTANCE.getProperty(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger(0);
+
+    private HeaderDictionary() {
+
+    }
+
+    /**
+     * Get the id of a header string, assigning one if needed.
+     * 
+     * @param value a header string.
+     * @return the id, or zero if the dictionary is full.
+     */
+    static int getId(String value) {
+        Integer id = ids.get(value);
+        if(id != null) {
+            return id;
+        }
+
+        id = ids.computeIfAbsent(value, v -> {
+            int last = nextId.getAndUpdate(n -> n < maxSize ? n + 1 : n);
+            return last < maxSize ? last + 1 : null;
+        });
+        return id == null ? 0 : id;
+    }
+}
@@ -93,6 +93,17 @@ public abstract class AbstractMember implements Member {
         memberHolder = holder;
     }
 
+    /**
+     * Determine whether messages on a topic are encrypted under the policy 
+     * of this member's cluster.
+     * 
+     * @param topic a topic.
+     * @return true if the topic is encrypted.
+     */
+    protected boolean isEncrypted(String topic) {
+        return memberHolder != null && memberHolder.getEncryptionPolicy().isEncrypted(topic);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core.member;
+
+import io.bigio.Parameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which topics are encrypted when encryption is enabled. Topics 
+ * matching one of the encrypted patterns are encrypted unless they also 
+ * match one of the plaintext patterns. Topics set explicitly through 
+ * {@link #setEncrypted(String, boolean)} override the patterns.
+ * 
+ * <p>
+ * Patterns are comma separated regular expressions. By default every topic 
+ * is encrypted. Every member should be configured with the same policy, 
+ * since members drop plaintext messages on topics they expect encrypted. 
+ * Each cluster service has its own policy, held by its member container.
+ * </p>
+ * 
+ * @author Andy Trimble
+ */
+public final class EncryptionPolicy {
+
+    public static final String ENCRYPTED_TOPICS_PROPERTY = "io.bigio.encryption.topics";
+    public static final String PLAINTEXT_TOPICS_PROPERTY = "io.bigio.encryption.plaintextTopics";
+    private static final String DEFAULT_ENCRYPTED_TOPICS = ".*";
+    private static final String DEFAULT_PLAINTEXT_TOPICS = "";
+
+    // Only this many pattern decisions are remembered, so a node seeing an 
+    // unbounded number of topics does not grow without limit.
+    private static final int MAX_DECISIONS = 1024;
+
+    private final List<Pattern> encrypted;
+    private final List<Pattern> plaintext;
+    private final Map<String, Boolean> overrides = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    public EncryptionPolicy() {
+        encrypted = compile(Parameters.INSTANCE.getProperty(
+                ENCRYPTED_TOPICS_PROPERTY, DEFAULT_ENCRYPTED_TOPICS));
+        plaintext = compile(Parameters.INSTANCE.getProperty(
+                PLAINTEXT_TOPICS_PROPERTY, DEFAULT_PLAINTEXT_TOPICS));
+    }
+
+    /**
+     * Determine whether messages on a topic are to be encrypted.
+     * 
+     * @param topic a topic.
+     * @return true if the topic is encrypted.
+     */
+    public boolean isEncrypted(String topic) {
+        Boolean ret = overrides.get(topic);
+        if(ret == null) {
+            ret = decisions.get(topic);
+            if(ret == null) {
+                ret = !matches(plaintext, topic) && matches(encrypted, topic);
+                if(decisions.size() < MAX_DECISIONS) {
+                    decisions.put(topic, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Mark a topic as encrypted or plaintext regardless of the configured 
+     * patterns.
+     * 
+     * @param topic a topic.
+     * @param encrypt whether messages on the topic are to be encrypted.
+     */
+    public void setEncrypted(String topic, boolean encrypt) {
+        overrides.put(topic, encrypt);
+    }
+
+    private static boolean matches(List<Pattern> patterns, String topic) {
+        for(Pattern pattern : patterns) {
+            if(pattern.matcher(topic).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(String patterns) {
+        List<Pattern> ret = new ArrayList<>();
+        for(String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if(!pattern.isEmpty()) {
+                ret.add(Pattern.compile(pattern));
+            }
+        }
+        return Collections.unmodifiableList(ret);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core.member;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes data frames without flushing them and flushes them together, once 
+ * per event loop iteration or after a linger period, or earlier once enough 
+ * bytes are waiting. One instance belongs to one channel and is only used on 
+ * that channel's event loop, so a new connection starts with nothing 
+ * pending.
+ * 
+ * @author Andy Trimble
+ */
+final class FlushCoalescingHandler extends ChannelOutboundHandlerAdapter {
+
+    private final int flushBytes;
+    private final long lingerMicros;
+
+    private int unflushed = 0;
+    private boolean flushScheduled = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param flushBytes flush as soon as this many bytes are waiting.
+     * @param lingerMicros how long to hold a flush, or zero to flush once 
+     * the tasks already queued on the event loop have run.
+     */
+    FlushCoalescingHandler(int flushBytes, long lingerMicros) {
+        this.flushBytes = flushBytes;
+        this.lingerMicros = lingerMicros;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        int size = msg instanceof ByteBuf ? ((ByteBuf)msg).readableBytes() : 0;
+        ctx.write(msg, promise);
+
+        unflushed += size;
+        if(unflushed >= flushBytes) {
+            flushNow(ctx);
+        } else if(!flushScheduled) {
+            // Writes submitted from other threads before this point are 
+            // already queued on the event loop, so they go out with this 
+            // flush.
+            flushScheduled = true;
+            if(lingerMicros > 0) {
+                ctx.executor().schedule(() -> flushNow(ctx), lingerMicros, TimeUnit.MICROSECONDS);
+            } else {
+                ctx.executor().execute(() -> flushNow(ctx));
+            }
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        unflushed = 0;
+        ctx.flush();
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        flushScheduled = false;
+        unflushed = 0;
+        ctx.flush();
+    }
+}
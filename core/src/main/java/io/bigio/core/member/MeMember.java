@@ -28,6 +28,12 @@
  */
 package io.bigio.core.member;
 
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.ProducerType;
 import io.bigio.Parameters;
 import io.bigio.core.Envelope;
 import io.bigio.core.GossipListener;
@@ -36,17 +42,17 @@ import io.bigio.core.ListenerRegistry;
 import io.bigio.core.codec.EnvelopeCodec;
 import io.bigio.core.codec.GenericCodec;
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import javax.crypto.BadPaddingException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import org.msgpack.core.MessageTypeException;
 import org.slf4j.Logger;
@@ -55,6 +61,8 @@ import reactor.core.Environment;
 import reactor.core.Reactor;
 import reactor.core.spec.Reactors;
 import reactor.event.Event;
+import reactor.event.dispatch.Dispatcher;
+import reactor.event.dispatch.RingBufferDispatcher;
 import reactor.event.selector.Selectors;
 
 /**
@@ -68,19 +76,33 @@ public abstract class MeMember extends AbstractMember {
 
     public static final String ENCRYPTION_PROPERTY = "io.bigio.encryption";
     private static final String DEFAULT_ENCRYPTION = "false";
+    public static final String CRYPTO_THREADS_PROPERTY = "io.bigio.encryption.threads";
+    public static final String DECODER_THREADS_PROPERTY = "io.bigio.decoder.threads";
+    public static final String DECODER_BUFFER_SIZE_PROPERTY = "io.bigio.decoder.bufferSize";
+    public static final String DECODER_WAIT_STRATEGY_PROPERTY = "io.bigio.decoder.waitStrategy";
+    public static final String DECODER_SHARD_BY_TOPIC_PROPERTY = "io.bigio.decoder.shardByTopic";
+    private static final String DEFAULT_DECODER_BUFFER_SIZE = "1024";
+    private static final String DEFAULT_DECODER_WAIT_STRATEGY = "blocking";
+    private static final String DEFAULT_DECODER_SHARD_BY_TOPIC = "false";
 
     protected static final String GOSSIP_TOPIC = "__gossiper";
     protected static final String DECODE_TOPIC = "__decoder";
+    private static final String DECRYPT_TOPIC = "__decrypter";
                 
     private final Environment env = new Environment();
     protected Reactor reactor;
-    protected Reactor decoderReactor;
+    private Reactor[] decoderReactors;
+    private Dispatcher[] decoderDispatchers;
+    private boolean shardByTopic;
+    private volatile Reactor[] cryptoReactors;
+    private Dispatcher[] cryptoDispatchers;
 
     protected ListenerRegistry registry;
 
-    private Cipher symmetricCipher = null;
     private Cipher rsaCipher = null;
     private KeyPair keyPair = null;
+    // Session keys by sender, unwrapped once and reused until replaced.
+    private final Map<String, ReceivedKey> sessionKeys = new ConcurrentHashMap<>();
 
     public MeMember(MemberHolder memberHolder, ListenerRegistry registry) {
         super(memberHolder);
@@ -103,7 +125,8 @@ public abstract class MeMember extends AbstractMember {
     @Override
     public void initialize() {
         initializeReactor();
-        initializeServers();
+
+        getTags().put(EnvelopeCodec.VERSION_TAG, Integer.toString(EnvelopeCodec.CURRENT_VERSION));
 
         boolean encryption = Boolean.parseBoolean(
                 Parameters.INSTANCE.getProperty(ENCRYPTION_PROPERTY, DEFAULT_ENCRYPTION));
@@ -115,83 +138,302 @@ public abstract class MeMember extends AbstractMember {
                 keyGen.initialize(2048);
                 this.keyPair = keyGen.generateKeyPair();
                 this.publicKey = keyPair.getPublic().getEncoded();
-                this.symmetricCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                this.rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+                this.rsaCipher = Cipher.getInstance(SessionKey.RSA_TRANSFORMATION);
+                initializeCryptoStage();
             } catch (NoSuchAlgorithmException ex) {
                 LOG.error("Could not find RSA algorithm.", ex);
             } catch (NoSuchPaddingException ex) {
                 LOG.error("Could not find padding.", ex);
             } 
         }
+
+        initializeServers();
+    }
+
+    /**
+     * Hand a received envelope on for decoding. Encrypted envelopes are 
+     * decrypted first on one of the crypto threads. Decoding is spread over 
+     * the decoder threads the same way, by sender (and optionally topic), 
+     * so each sender's messages stay in order. Plaintext envelopes on 
+     * topics the encryption policy expects encrypted are dropped.
+     * 
+     * @param envelope a received envelope.
+     */
+    protected void receive(Envelope envelope) {
+        if(keyPair != null && !envelope.isEncrypted() 
+                && isEncrypted(envelope.getTopic())) {
+            LOG.warn("Dropping plaintext message on encrypted topic " 
+                    + envelope.getTopic() + " from " + envelope.getSenderKey());
+            envelope.release();
+            return;
+        }
+
+        Reactor[] stage = cryptoReactors;
+        if(envelope.isEncrypted() && stage != null) {
+            int shard = (envelope.getSenderKey().hashCode() & Integer.MAX_VALUE) % stage.length;
+            if(!cryptoDispatchers[shard].alive()) {
+                LOG.debug("Dropping message received after shutdown from " + envelope.getSenderKey());
+                envelope.release();
+                return;
+            }
+            stage[shard].notify(DECRYPT_TOPIC, Event.wrap(envelope));
+        } else {
+            decode(envelope);
+        }
+    }
+
+    private void decode(Envelope envelope) {
+        int hash = envelope.getSenderKey().hashCode();
+        if(shardByTopic) {
+            hash = 31 * hash + envelope.getTopic().hashCode();
+        }
+        int shard = (hash & Integer.MAX_VALUE) % decoderReactors.length;
+        if(!decoderDispatchers[shard].alive()) {
+            LOG.debug("Dropping message received after shutdown from " + envelope.getSenderKey());
+            envelope.release();
+            return;
+        }
+        decoderReactors[shard].notify(DECODE_TOPIC, Event.wrap(envelope));
+    }
+
+    /**
+     * Stop the decrypt and decoder threads. Subclasses must call this after 
+     * stopping their servers.
+     */
+    @Override
+    public void shutdown() {
+        shutdown(cryptoDispatchers);
+        shutdown(decoderDispatchers);
+    }
+
+    private static void shutdown(Dispatcher[] dispatchers) {
+        if(dispatchers == null) {
+            return;
+        }
+        for(Dispatcher dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
     }
 
     @Override
     public void send(Envelope envelope) throws IOException {
         if(!envelope.isDecoded()) {
-            if(envelope.isEncrypted()) {
-                byte[] symKey;
-                SecretKey key = null;
-                try {
-                    // decrypt symmetric key
-                    synchronized(rsaCipher) {
-                        rsaCipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
-                        symKey = rsaCipher.doFinal(envelope.getKey());
-                    }
-                    key = new SecretKeySpec(symKey, 0, symKey.length, "AES");
-                } catch (IllegalBlockSizeException ex) {
-                    LOG.error("Illegal block size in secret key.", ex);
-                } catch (BadPaddingException ex) {
-                    LOG.error("Bad padding in secret key.", ex);
-                } catch (InvalidKeyException ex) {
-                    LOG.error("Invalid public key.", ex);
-                }
+            if(envelope.isEncrypted() && !decrypt(envelope)) {
+                envelope.release();
+                return;
+            }
 
-                try {
-                    // decrypt data with symmetric key
-                    byte[] iv = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-                    IvParameterSpec ivspec = new IvParameterSpec(iv);
-                    synchronized(symmetricCipher) {
-                        symmetricCipher.init(Cipher.DECRYPT_MODE, key, ivspec);
-                        envelope.setPayload(symmetricCipher.doFinal(envelope.getPayload()));
-                    }
-                } catch (IllegalBlockSizeException ex) {
-                    LOG.error("Private key too big.", ex);
-                } catch (BadPaddingException ex) {
-                    LOG.error("Bad padding in payload.", ex);
-                } catch (InvalidKeyException ex) {
-                    LOG.error("Invalid symmetric key.", ex);
-                } catch (InvalidAlgorithmParameterException ex) {
-                    LOG.error("Invalid algorithm.", ex);
-                }
+            if(envelope.isBatch()) {
+                sendBatch(envelope);
+                return;
             }
 
-            // decode message
-            envelope.setMessage(GenericCodec.decode(envelope.getClassName(), envelope.getPayload()));
-            envelope.setDecoded(true);
+            // decode message, the received buffer is released once the 
+            // payload has been read out of it
+            try {
+                envelope.setMessage(GenericCodec.decode(envelope.getClassName(), envelope.getPayload()));
+                envelope.setDecoded(true);
+            } finally {
+                envelope.release();
+            }
         }
         
         registry.send(envelope);
     }
 
+    private void sendBatch(Envelope batch) throws IOException {
+        List<byte[]> payloads;
+        try {
+            payloads = EnvelopeCodec.decodeBatch(batch.getPayload());
+        } finally {
+            batch.release();
+        }
+
+        for(byte[] payload : payloads) {
+            Envelope envelope = new Envelope();
+            envelope.setSenderKey(batch.getSenderKey());
+            envelope.setExecuteTime(batch.getExecuteTime());
+            envelope.setMillisecondsSinceMidnight(batch.getMillisecondsSinceMidnight());
+            envelope.setTopic(batch.getTopic());
+            envelope.setPartition(batch.getPartition());
+            envelope.setClassName(batch.getClassName());
+            envelope.setMessage(GenericCodec.decode(batch.getClassName(), payload));
+            envelope.setDecoded(true);
+            registry.send(envelope);
+        }
+    }
+
+    private boolean decrypt(Envelope envelope) {
+        if(keyPair == null) {
+            LOG.error("Received an encrypted message but encryption is not enabled.");
+            return false;
+        }
+
+        try {
+            if(envelope.getKeyId() == 0) {
+                // The key was wrapped for this message alone.
+                envelope.setPayload(SessionKey.decryptLegacy(
+                        unwrap(envelope.getKey()), envelope.getPayload()));
+            } else {
+                SecretKey key = getSessionKey(envelope);
+                if(key == null) {
+                    LOG.error("Unknown session key " + envelope.getKeyId() + " from " + envelope.getSenderKey());
+                    return false;
+                }
+                envelope.setPayload(SessionKey.decrypt(key, envelope.getPayload()));
+            }
+            envelope.setEncrypted(false);
+            return true;
+        } catch(GeneralSecurityException ex) {
+            LOG.error("Cannot decrypt message from " + envelope.getSenderKey(), ex);
+            return false;
+        }
+    }
+
+    private SecretKey getSessionKey(Envelope envelope) throws GeneralSecurityException {
+        String sender = envelope.getSenderKey();
+        int id = envelope.getKeyId();
+        byte[] wrapped = envelope.getKey();
+
+        ReceivedKey known = sessionKeys.get(sender);
+        for(ReceivedKey k = known; k != null; k = k.previous) {
+            if(k.id == id && (wrapped == null || Arrays.equals(wrapped, k.wrapped))) {
+                return k.key;
+            }
+        }
+
+        if(wrapped == null) {
+            return null;
+        }
+
+        // Keep the key being replaced around for messages still in flight.
+        ReceivedKey previous = known == null ? null : new ReceivedKey(known.id, known.wrapped, known.key, null);
+        SecretKey key = unwrap(wrapped);
+        sessionKeys.put(sender, new ReceivedKey(id, wrapped, key, previous));
+        return key;
+    }
+
+    private SecretKey unwrap(byte[] wrapped) throws GeneralSecurityException {
+        byte[] symKey;
+        synchronized(rsaCipher) {
+            rsaCipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+            symKey = rsaCipher.doFinal(wrapped);
+        }
+        return new SecretKeySpec(symKey, 0, symKey.length, "AES");
+    }
+
+    private void initializeCryptoStage() {
+        int threads = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                CRYPTO_THREADS_PROPERTY, 
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        Reactor[] stage = new Reactor[Math.max(1, threads)];
+        Dispatcher[] dispatchers = new Dispatcher[stage.length];
+        for(int i = 0; i < stage.length; ++i) {
+            dispatchers[i] = newDispatcher("bigio-crypto-" + i);
+            stage[i] = Reactors.reactor()
+                    .env(env)
+                    .dispatcher(dispatchers[i])
+                    .get();
+
+            stage[i].on(Selectors.$(DECRYPT_TOPIC), (Event<Envelope> m) -> {
+                Envelope message = m.getData();
+                boolean decrypted = false;
+                try {
+                    decrypted = decrypt(message);
+                } finally {
+                    if(decrypted) {
+                        decode(message);
+                    } else {
+                        message.release();
+                    }
+                }
+            });
+        }
+        cryptoDispatchers = dispatchers;
+        cryptoReactors = stage;
+    }
+
     private void initializeReactor() {
         reactor = Reactors.reactor()
                 .env(env)
                 .dispatcher(Environment.RING_BUFFER)
                 .get();
 
-        decoderReactor = Reactors.reactor()
-                .env(env)
-                .dispatcher(Environment.RING_BUFFER)
-                .get();
+        int threads = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                DECODER_THREADS_PROPERTY, 
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        shardByTopic = Boolean.parseBoolean(Parameters.INSTANCE.getProperty(
+                DECODER_SHARD_BY_TOPIC_PROPERTY, DEFAULT_DECODER_SHARD_BY_TOPIC));
 
-        decoderReactor.on(Selectors.$(DECODE_TOPIC), (Event<byte[]> m) -> {
-            try {
-                Envelope message = EnvelopeCodec.decode(m.getData());
-                message.setDecoded(false);
-                send(message);
-            } catch (IOException | MessageTypeException ex) {
-                LOG.error("Error decoding message.", ex);
-            }
-        });
+        decoderReactors = new Reactor[Math.max(1, threads)];
+        decoderDispatchers = new Dispatcher[decoderReactors.length];
+        for(int i = 0; i < decoderReactors.length; ++i) {
+            decoderDispatchers[i] = newDispatcher("bigio-decoder-" + i);
+            decoderReactors[i] = Reactors.reactor()
+                    .env(env)
+                    .dispatcher(decoderDispatchers[i])
+                    .get();
+
+            decoderReactors[i].on(Selectors.$(DECODE_TOPIC), (Event<Envelope> m) -> {
+                Envelope message = m.getData();
+                try {
+                    message.setDecoded(false);
+                    send(message);
+                } catch (IOException | MessageTypeException ex) {
+                    LOG.error("Error decoding message.", ex);
+                } finally {
+                    message.release();
+                }
+            });
+        }
+    }
+
+    private static Dispatcher newDispatcher(String name) {
+        int bufferSize = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                DECODER_BUFFER_SIZE_PROPERTY, DEFAULT_DECODER_BUFFER_SIZE));
+        String strategy = Parameters.INSTANCE.getProperty(
+                DECODER_WAIT_STRATEGY_PROPERTY, DEFAULT_DECODER_WAIT_STRATEGY);
+
+        WaitStrategy waitStrategy;
+        switch(strategy) {
+            case "sleeping":
+                waitStrategy = new SleepingWaitStrategy();
+                break;
+            case "yielding":
+                waitStrategy = new YieldingWaitStrategy();
+                break;
+            case "busySpin":
+                waitStrategy = new BusySpinWaitStrategy();
+                break;
+            case "blocking":
+                waitStrategy = new BlockingWaitStrategy();
+                break;
+            default:
+                LOG.warn("Unknown wait strategy '" + strategy + "'. Using blocking.");
+                waitStrategy = new BlockingWaitStrategy();
+                break;
+        }
+
+        return new RingBufferDispatcher(name, bufferSize, 
+                (Throwable ex) -> LOG.error("Uncaught exception in " + name, ex), 
+                ProducerType.MULTI, waitStrategy);
+    }
+
+    /**
+     * A session key unwrapped for one sender.
+     */
+    private static final class ReceivedKey {
+        private final int id;
+        private final byte[] wrapped;
+        private final SecretKey key;
+        private final ReceivedKey previous;
+
+        ReceivedKey(int id, byte[] wrapped, SecretKey key, ReceivedKey previous) {
+            this.id = id;
+            this.wrapped = wrapped;
+            this.key = key;
+            this.previous = previous;
+        }
     }
 }
@@ -28,24 +28,21 @@
  */
 package io.bigio.core.member;
 
+import io.bigio.core.Envelope;
 import io.bigio.core.GossipMessage;
 import io.bigio.core.ListenerRegistry;
+import io.bigio.core.codec.EnvelopeCodec;
 import io.bigio.core.codec.GossipCodec;
 import io.bigio.util.NetworkUtil;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.ReplayingDecoder;
 import io.netty.handler.codec.bytes.ByteArrayDecoder;
@@ -60,7 +57,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.net.ssl.SSLException;
@@ -121,6 +121,7 @@ public class MeMemberTCP extends MeMember {
             dataWorkerGroup.shutdownGracefully();
         }
 
+        super.shutdown();
     }
 
     @Override
@@ -173,16 +174,16 @@ public class MeMemberTCP extends MeMember {
         private ChannelFuture f;
 
         public GossipServerThread() {
-            gossipBossGroup = new NioEventLoopGroup(GOSSIP_BOSS_THREADS);
-            gossipWorkerGroup = new NioEventLoopGroup(GOSSIP_WORKER_THREADS);
+            gossipBossGroup = Transport.INSTANCE.newGroup(GOSSIP_BOSS_THREADS);
+            gossipWorkerGroup = Transport.INSTANCE.newGroup(GOSSIP_WORKER_THREADS);
             try {
                 ServerBootstrap b = new ServerBootstrap();
                 b.group(gossipBossGroup, gossipWorkerGroup)
-                        .channel(NioServerSocketChannel.class)
+                        .channel(Transport.INSTANCE.getServerSocketChannel())
                         .childHandler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             public void initChannel(SocketChannel ch) throws Exception {
-                                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                                 ch.pipeline().addLast(new GossipMessageDecoder());
                                 ch.pipeline().addLast("encoder", new ByteArrayEncoder());
                                 ch.pipeline().addLast("decoder", new ByteArrayDecoder());
@@ -200,6 +201,8 @@ public class MeMemberTCP extends MeMember {
                         .option(ChannelOption.SO_BACKLOG, 128)
                         .childOption(ChannelOption.SO_KEEPALIVE, true);
 
+                Transport.INSTANCE.configure(b, false);
+
                 // Bind and start to accept incoming connections.
                 f = b.bind(getIp(), getGossipPort()).sync();
             } catch (InterruptedException ex) {
@@ -225,24 +228,23 @@ public class MeMemberTCP extends MeMember {
 
     private class DataServerThread implements Runnable {
 
-        private ChannelFuture f;
+        private final List<ChannelFuture> futures = new ArrayList<>();
 
         public DataServerThread() {
-            dataBossGroup = new NioEventLoopGroup(DATA_BOSS_THREADS);
-            dataWorkerGroup = new NioEventLoopGroup(DATA_WORKER_THREADS);
+            dataBossGroup = Transport.INSTANCE.newGroup(DATA_BOSS_THREADS);
+            dataWorkerGroup = Transport.INSTANCE.newGroup(DATA_WORKER_THREADS);
             try {
                 ServerBootstrap b = new ServerBootstrap();
                 b.group(dataBossGroup, dataWorkerGroup)
-                        .channel(NioServerSocketChannel.class)
+                        .channel(Transport.INSTANCE.getServerSocketChannel())
                         .childHandler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             public void initChannel(SocketChannel ch) throws Exception {
-                                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                                 if(useSSL) {
                                     ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
                                 }
-                                ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(32768, 0, 2, 0, 2));
-                                ch.pipeline().addLast("decoder", new ByteArrayDecoder());
+                                ch.pipeline().addLast(new DataFrameDecoder());
                                 ch.pipeline().addLast(new DataMessageHandler());
                                 if(LOG.isTraceEnabled()) {
                                     ch.pipeline().addLast(new LoggingHandler(LogLevel.TRACE));
@@ -259,8 +261,16 @@ public class MeMemberTCP extends MeMember {
                         .option(ChannelOption.SO_BACKLOG, 128)
                         .childOption(ChannelOption.SO_KEEPALIVE, true);
 
+                Transport.INSTANCE.configure(b, true);
+
+                // With SO_REUSEPORT the port is bound several times and the 
+                // kernel spreads senders across the sockets.
+                int binds = Transport.INSTANCE.isReusePort() ? DATA_BOSS_THREADS : 1;
+
                 // Bind and start to accept incoming connections.
-                f = b.bind(getIp(), getDataPort()).sync();
+                for(int i = 0; i < binds; ++i) {
+                    futures.add(b.bind(getIp(), getDataPort()).sync());
+                }
             } catch (InterruptedException ex) {
                 LOG.error("Message data interrupted.", ex);
             }
@@ -269,8 +279,10 @@ public class MeMemberTCP extends MeMember {
         @Override
         public void run() {
             try {
-                // Wait until the server socket is closed.
-                f.channel().closeFuture().sync();
+                // Wait until the server sockets are closed.
+                for(ChannelFuture f : futures) {
+                    f.channel().closeFuture().sync();
+                }
 
                 LOG.debug("Shutting down data server");
             } catch (InterruptedException ex) {
@@ -318,12 +330,41 @@ public class MeMemberTCP extends MeMember {
         }
     }
 
-    @Sharable
-    private class DataMessageHandler extends SimpleChannelInboundHandler<byte[]> {
+    /**
+     * Splits the data stream into frames without copying them out of the 
+     * cumulation buffer.
+     */
+    private static class DataFrameDecoder extends LengthFieldBasedFrameDecoder {
+
+        public DataFrameDecoder() {
+            super(32768, 0, 2, 0, 2);
+        }
+
+        @Override
+        protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+            return buffer.slice(index, length).retain();
+        }
+    }
+
+    private class DataMessageHandler extends ChannelInboundHandlerAdapter {
+
+        // Header strings defined by the sender on this connection.
+        private final Map<Integer, String> dictionary = new HashMap<>();
         
         @Override
-        public void channelRead0(ChannelHandlerContext ctx, byte[] bytes) {
-            decoderReactor.notify(DECODE_TOPIC, Event.wrap(bytes));
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if(msg instanceof ByteBuf) {
+                try {
+                    Envelope message = EnvelopeCodec.decode((ByteBuf) msg, dictionary);
+                    receive(message);
+                } catch (IOException | MessageTypeException ex) {
+                    LOG.error("Error decoding message.", ex);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
         }
 
         @Override
@@ -28,15 +28,15 @@
  */
 package io.bigio.core.member;
 
+import io.bigio.core.Envelope;
 import io.bigio.core.GossipMessage;
 import io.bigio.core.ListenerRegistry;
+import io.bigio.core.codec.EnvelopeCodec;
 import io.bigio.core.codec.GossipCodec;
 import io.bigio.util.NetworkUtil;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.bootstrap.ChannelFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -45,13 +45,9 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.InternetProtocolFamily;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.ReplayingDecoder;
 import io.netty.handler.codec.bytes.ByteArrayDecoder;
@@ -61,6 +57,7 @@ import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.ReferenceCountUtil;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -119,6 +116,7 @@ public class MeMemberUDP extends MeMember {
             dataWorkerGroup.shutdownGracefully();
         }
 
+        super.shutdown();
     }
 
     @Override
@@ -144,16 +142,16 @@ public class MeMemberUDP extends MeMember {
         private ChannelFuture f;
 
         public GossipServerThread() {
-            gossipBossGroup = new NioEventLoopGroup(GOSSIP_BOSS_THREADS);
-            gossipWorkerGroup = new NioEventLoopGroup(GOSSIP_WORKER_THREADS);
+            gossipBossGroup = Transport.INSTANCE.newGroup(GOSSIP_BOSS_THREADS);
+            gossipWorkerGroup = Transport.INSTANCE.newGroup(GOSSIP_WORKER_THREADS);
             try {
                 ServerBootstrap b = new ServerBootstrap();
                 b.group(gossipBossGroup, gossipWorkerGroup)
-                        .channel(NioServerSocketChannel.class)
+                        .channel(Transport.INSTANCE.getServerSocketChannel())
                         .childHandler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             public void initChannel(SocketChannel ch) throws Exception {
-                                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                                 ch.pipeline().addLast(new GossipMessageDecoder());
                                 ch.pipeline().addLast("encoder", new ByteArrayEncoder());
                                 ch.pipeline().addLast("decoder", new ByteArrayDecoder());
@@ -171,6 +169,8 @@ public class MeMemberUDP extends MeMember {
                         .option(ChannelOption.SO_BACKLOG, 128)
                         .childOption(ChannelOption.SO_KEEPALIVE, true);
 
+                Transport.INSTANCE.configure(b, false);
+
                 // Bind and start to accept incoming connections.
                 f = b.bind(getIp(), getGossipPort()).sync();
             } catch (InterruptedException ex) {
@@ -196,28 +196,19 @@ public class MeMemberUDP extends MeMember {
 
     private class DataServerThread implements Runnable {
 
-        private ChannelFuture f;
+        private final List<ChannelFuture> futures = new ArrayList<>();
 
         public DataServerThread() {
-            dataBossGroup = new NioEventLoopGroup(DATA_BOSS_THREADS);
-            dataWorkerGroup = new NioEventLoopGroup(DATA_WORKER_THREADS);
+            dataBossGroup = Transport.INSTANCE.newGroup(DATA_BOSS_THREADS);
+            dataWorkerGroup = Transport.INSTANCE.newGroup(DATA_WORKER_THREADS);
             try {
                 Bootstrap b = new Bootstrap();
                 b.group(dataWorkerGroup)
-                        .channelFactory(new ChannelFactory<Channel>() {
-                            @Override
-                            public Channel newChannel() {
-                                return new NioDatagramChannel(InternetProtocolFamily.IPv4);
-                            }
-
-                            @Override
-                            public String toString() {
-                                return NioDatagramChannel.class.getSimpleName() + ".class";
-                            }
-                        }).handler(new ChannelInitializer<DatagramChannel>() {
+                        .channelFactory(Transport.INSTANCE.getDatagramChannelFactory())
+                        .handler(new ChannelInitializer<DatagramChannel>() {
                             @Override
                             public void initChannel(DatagramChannel ch) throws Exception {
-                                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                                 ch.pipeline().addLast(new DataMessageHandler());
                                 if (LOG.isTraceEnabled()) {
                                     ch.pipeline().addLast(new LoggingHandler(LogLevel.TRACE));
@@ -230,8 +221,16 @@ public class MeMemberUDP extends MeMember {
                             }
                         });
 
+                Transport.INSTANCE.configure(b, true);
+
+                // With SO_REUSEPORT the port is bound several times and the 
+                // kernel spreads senders across the sockets.
+                int binds = Transport.INSTANCE.isReusePort() ? DATA_WORKER_THREADS : 1;
+
                 // Bind and start to accept incoming connections.
-                f = b.bind(getIp(), getDataPort()).sync();
+                for (int i = 0; i < binds; ++i) {
+                    futures.add(b.bind(getIp(), getDataPort()).sync());
+                }
             } catch (InterruptedException ex) {
                 LOG.error("Message data interrupted.", ex);
             }
@@ -240,8 +239,10 @@ public class MeMemberUDP extends MeMember {
         @Override
         public void run() {
             try {
-                // Wait until the server socket is closed.
-                f.channel().closeFuture().sync();
+                // Wait until the server sockets are closed.
+                for (ChannelFuture f : futures) {
+                    f.channel().closeFuture().sync();
+                }
 
                 LOG.debug("Shutting down data server");
             } catch (InterruptedException ex) {
@@ -295,12 +296,13 @@ public class MeMemberUDP extends MeMember {
         @Override
         public void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) {
             ByteBuf buff = packet.content();
-            byte[] bytes = new byte[2];
-            buff.readBytes(bytes, 0, 2);
-            int size = (bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF);
-            bytes = new byte[size];
-            buff.readBytes(bytes, 0, size);
-            decoderReactor.notify(DECODE_TOPIC, Event.wrap(bytes));
+            int size = buff.readUnsignedShort();
+            try {
+                Envelope message = EnvelopeCodec.decode(buff.slice(buff.readerIndex(), size));
+                receive(message);
+            } catch (IOException | MessageTypeException ex) {
+                LOG.error("Error decoding message.", ex);
+            }
         }
 
         @Override
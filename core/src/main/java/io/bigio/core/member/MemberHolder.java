@@ -46,6 +46,16 @@ public class MemberHolder {
     private final Map<String, Member> members = new ConcurrentHashMap<>();
     private final Map<String, Member> activeMembers = new ConcurrentHashMap<>();
     private final Map<String, Member> deadMembers = new ConcurrentHashMap<>();
+    private final EncryptionPolicy encryptionPolicy = new EncryptionPolicy();
+
+    /**
+     * Get the encryption policy shared by the members in this container.
+     * 
+     * @return the encryption policy.
+     */
+    public EncryptionPolicy getEncryptionPolicy() {
+        return encryptionPolicy;
+    }
 
     public void clear() {
         members.clear();
@@ -28,8 +28,38 @@
  */
 package io.bigio.core.member;
 
+import io.bigio.BackpressurePolicy;
+import io.bigio.Parameters;
+import io.bigio.core.Envelope;
 import io.bigio.core.GossipMessage;
+import io.bigio.core.codec.EnvelopeCodec;
+import io.bigio.core.codec.EnvelopeFrame;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.FastThreadLocalThread;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A representation of a remote BigIO cluster member.
@@ -38,6 +68,48 @@ import java.io.IOException;
  */
 public abstract class RemoteMember extends AbstractMember {
 
+    public static final String REKEY_INTERVAL_PROPERTY = "io.bigio.encryption.rekeyInterval";
+    private static final String DEFAULT_REKEY_INTERVAL = "3600000";
+    public static final String BACKPRESSURE_PROPERTY = "io.bigio.remote.backpressure";
+    public static final String BLOCK_TIMEOUT_PROPERTY = "io.bigio.remote.blockTimeout";
+    public static final String HIGH_WATER_MARK_PROPERTY = "io.bigio.remote.writeBufferHighWaterMark";
+    public static final String LOW_WATER_MARK_PROPERTY = "io.bigio.remote.writeBufferLowWaterMark";
+    private static final String DEFAULT_BACKPRESSURE = "BLOCK";
+    private static final String DEFAULT_BLOCK_TIMEOUT = "5000";
+    private static final String DEFAULT_HIGH_WATER_MARK = "65536";
+    private static final String DEFAULT_LOW_WATER_MARK = "32768";
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteMember.class);
+
+    private final long rekeyInterval = Long.parseLong(
+            Parameters.INSTANCE.getProperty(REKEY_INTERVAL_PROPERTY, DEFAULT_REKEY_INTERVAL));
+
+    private final BackpressurePolicy backpressure = parseBackpressure(
+            Parameters.INSTANCE.getProperty(BACKPRESSURE_PROPERTY, DEFAULT_BACKPRESSURE));
+    private final long blockTimeout = Long.parseLong(
+            Parameters.INSTANCE.getProperty(BLOCK_TIMEOUT_PROPERTY, DEFAULT_BLOCK_TIMEOUT));
+    private final int highWaterMark = Integer.parseInt(
+            Parameters.INSTANCE.getProperty(HIGH_WATER_MARK_PROPERTY, DEFAULT_HIGH_WATER_MARK));
+    private final int lowWaterMark = Integer.parseInt(
+            Parameters.INSTANCE.getProperty(LOW_WATER_MARK_PROPERTY, DEFAULT_LOW_WATER_MARK));
+
+    // Senders blocked on a full outbound buffer wait on this.
+    private final Object writability = new Object();
+
+    // Members are sent version 1 envelopes until their gossip says they 
+    // read version 2.
+    private volatile int envelopeVersion = 1;
+
+    private PublicKey rsaKey = null;
+    private volatile SessionKey sessionKey = null;
+    private int nextKeyId = SessionKey.randomId();
+
+    // Conflated messages waiting for the end of their linger window, in the 
+    // order their keys were first seen.
+    private final Object pendingLock = new Object();
+    private Map<PendingKey, Envelope> pending = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+
     public RemoteMember(MemberHolder memberHolder) {
         super(memberHolder);
     }
@@ -47,4 +119,435 @@ public abstract class RemoteMember extends AbstractMember {
     }
 
     public abstract void gossip(final GossipMessage message) throws IOException;
+
+    /**
+     * Send an envelope through a frame that may be shared by many members. 
+     * Implementations write a retained duplicate of whichever encoding suits 
+     * the connection and leave releasing the frame to the caller.
+     * 
+     * @param frame an envelope frame.
+     * @throws IOException in case of a sending error.
+     */
+    public abstract void sendFrame(final EnvelopeFrame frame) throws IOException;
+
+    /**
+     * Send an envelope without waiting for it to be written. The future 
+     * completes once the envelope is written, fails if it cannot be written 
+     * and is cancelled if it was dropped or there is no connection.
+     * 
+     * @param message an envelope.
+     * @return the completion of the write.
+     */
+    public abstract CompletableFuture<Void> sendAsync(final Envelope message);
+
+    /**
+     * Send an envelope frame without waiting for it to be written. The 
+     * caller keeps ownership of the frame.
+     * 
+     * @param frame an envelope frame.
+     * @return the completion of the write.
+     * @see #sendAsync(io.bigio.core.Envelope) 
+     */
+    public abstract CompletableFuture<Void> sendFrameAsync(final EnvelopeFrame frame);
+
+    /**
+     * Pick up the envelope version advertised in this member's tags. Call 
+     * whenever the tags are updated from gossip.
+     */
+    public void updateEnvelopeVersion() {
+        String version = getTags().get(EnvelopeCodec.VERSION_TAG);
+        int ret = 1;
+        if(version != null) {
+            try {
+                ret = Integer.parseInt(version);
+            } catch(NumberFormatException ex) {
+                LOG.warn("Unknown envelope version '" + version + "' from " + getIp() + ":" + getDataPort());
+            }
+        }
+        envelopeVersion = ret;
+    }
+
+    /**
+     * Determine whether a frame has to be sent to this member in the version 
+     * 1 format. Encrypted frames are always sent as version 2, since members 
+     * that only read version 1 use a different cipher anyway.
+     * 
+     * @param frame an envelope frame.
+     * @return true if the version 1 encoding is to be sent.
+     */
+    protected boolean isVersion1(EnvelopeFrame frame) {
+        return envelopeVersion < EnvelopeCodec.CURRENT_VERSION && !frame.isEncrypted();
+    }
+
+    /**
+     * Get the current data channel.
+     * 
+     * @return the data channel, or null if it is not connected.
+     */
+    protected abstract Channel getDataChannel();
+
+    /**
+     * Apply the write buffer water marks to a data channel and wake blocked 
+     * senders whenever its writability changes. Call from the channel 
+     * initializer before any handler that swallows inbound events.
+     * 
+     * @param channel a data channel.
+     */
+    protected void watchWritability(Channel channel) {
+        ChannelConfig config = channel.config();
+        // Netty rejects a high mark below the current low mark and the other 
+        // way around, so the order depends on where the marks are moving.
+        if(highWaterMark < config.getWriteBufferLowWaterMark()) {
+            config.setWriteBufferLowWaterMark(lowWaterMark);
+            config.setWriteBufferHighWaterMark(highWaterMark);
+        } else {
+            config.setWriteBufferHighWaterMark(highWaterMark);
+            config.setWriteBufferLowWaterMark(lowWaterMark);
+        }
+        channel.pipeline().addLast(new WritabilityHandler());
+    }
+
+    /**
+     * Write a message to a data channel, applying the back pressure policy 
+     * if its outbound buffer is full. Only a synchronous send on a thread 
+     * outside the transport waits for room. Asynchronous sends and sends 
+     * from Netty threads, which could be the ones that drain the buffer, 
+     * get a pending write instead that goes out once there is room.
+     * 
+     * @param channel a data channel.
+     * @param msg the message, released if it is not written.
+     * @param async true if the caller must not wait.
+     * @return the write, or null if the message was dropped.
+     * @throws IOException if the back pressure policy fails the write.
+     */
+    protected ChannelFuture write(Channel channel, Object msg, boolean async) throws IOException {
+        WritabilityHandler handler = channel.pipeline().get(WritabilityHandler.class);
+        if(handler == null || (channel.isWritable() && !handler.hasDeferred())) {
+            return doWrite(channel, msg, channel.newPromise());
+        }
+
+        switch(backpressure) {
+            case DROP:
+                ReferenceCountUtil.release(msg);
+                LOG.trace("Dropping message to " + getIp() + ":" + getDataPort());
+                return null;
+            case FAIL:
+                ReferenceCountUtil.release(msg);
+                throw new IOException("Outbound buffer to " + getIp() + ":" + getDataPort() + " is full.");
+            default:
+                if(async || Thread.currentThread() instanceof FastThreadLocalThread) {
+                    return handler.defer(channel, msg);
+                }
+
+                long deadline = System.currentTimeMillis() + blockTimeout;
+                synchronized(writability) {
+                    while(!channel.isWritable() && channel.isActive()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if(remaining <= 0) {
+                            ReferenceCountUtil.release(msg);
+                            throw new IOException("Timed out waiting on the outbound buffer to " 
+                                    + getIp() + ":" + getDataPort());
+                        }
+                        try {
+                            writability.wait(remaining);
+                        } catch(InterruptedException ex) {
+                            ReferenceCountUtil.release(msg);
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting on the outbound buffer.");
+                        }
+                    }
+                }
+
+                // Do not overtake writes that are still held back.
+                return handler.hasDeferred() 
+                        ? handler.defer(channel, msg) 
+                        : doWrite(channel, msg, channel.newPromise());
+        }
+    }
+
+    /**
+     * Hand a message to a data channel once it has been admitted.
+     * 
+     * @param channel a data channel.
+     * @param msg the message.
+     * @param promise the promise of the write.
+     * @return the write.
+     */
+    protected ChannelFuture doWrite(Channel channel, Object msg, ChannelPromise promise) {
+        return channel.writeAndFlush(msg, promise);
+    }
+
+    private static BackpressurePolicy parseBackpressure(String value) {
+        try {
+            return BackpressurePolicy.valueOf(value.trim().toUpperCase());
+        } catch(IllegalArgumentException ex) {
+            LOG.warn("Unknown back pressure policy '" + value + "'. Using " + BackpressurePolicy.BLOCK + ".");
+            return BackpressurePolicy.BLOCK;
+        }
+    }
+
+    /**
+     * Tie a Netty write to a completable future.
+     * 
+     * @param written the write, or null if nothing was written.
+     * @return the completion of the write.
+     */
+    protected static CompletableFuture<Void> completion(ChannelFuture written) {
+        CompletableFuture<Void> ret = new CompletableFuture<>();
+        if(written == null) {
+            ret.cancel(false);
+            return ret;
+        }
+
+        written.addListener((ChannelFuture future) -> {
+            if(future.isSuccess()) {
+                ret.complete(null);
+            } else if(future.isCancelled()) {
+                ret.cancel(false);
+            } else {
+                ret.completeExceptionally(future.cause());
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Get a future failed with a cause.
+     * 
+     * @param cause the cause.
+     * @return the failed future.
+     */
+    protected static CompletableFuture<Void> failed(Throwable cause) {
+        CompletableFuture<Void> ret = new CompletableFuture<>();
+        ret.completeExceptionally(cause);
+        return ret;
+    }
+
+    /**
+     * Prepare for encrypted traffic if the member has published a public 
+     * key.
+     */
+    protected void initializeEncryption() {
+        if(publicKey == null) {
+            return;
+        }
+
+        try {
+            rsaKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey));
+        } catch(GeneralSecurityException ex) {
+            LOG.error("Invalid public key.", ex);
+        }
+    }
+
+    /**
+     * Get the session key for this member, generating a new one if there is 
+     * none yet or the current one is due for rotation.
+     * 
+     * @return the session key, or null if the member does not take 
+     * encrypted traffic.
+     * @throws GeneralSecurityException if a key cannot be generated.
+     */
+    protected SessionKey getSessionKey() throws GeneralSecurityException {
+        SessionKey session = sessionKey;
+        if(rsaKey == null || (session != null && !session.isExpired(rekeyInterval))) {
+            return session;
+        }
+
+        synchronized(this) {
+            session = sessionKey;
+            if(session == null || session.isExpired(rekeyInterval)) {
+                int id = nextKeyId++;
+                if(id == 0) {
+                    id = nextKeyId++;
+                }
+                session = new SessionKey(id, rsaKey);
+                sessionKey = session;
+                LOG.debug("Generated session key " + id + " for " + getIp() + ":" + getDataPort());
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Encrypt the payload of an envelope with a session key.
+     * 
+     * @param message the envelope.
+     * @param session the session key.
+     * @param carryKey whether the wrapped key is sent along so the member 
+     * can unwrap it.
+     * @throws GeneralSecurityException in case of an encryption error.
+     */
+    protected void encrypt(Envelope message, SessionKey session, boolean carryKey) throws GeneralSecurityException {
+        message.setPayload(session.encrypt(message.getPayload()));
+        message.setKeyId(session.getId());
+        message.setKey(carryKey ? session.getWrapped() : null);
+        message.setEncrypted(true);
+    }
+
+    /**
+     * Send an envelope after a linger window. An envelope on the same topic 
+     * and partition with the same key that is sent before the window closes 
+     * replaces this one, so only the latest value goes on the wire. The 
+     * window is closed on the event loop of the data channel, where the 
+     * sends never wait on back pressure.
+     * 
+     * @param key the conflation key of the message.
+     * @param message the envelope.
+     * @param lingerMillis how long to hold the envelope.
+     */
+    public void sendConflated(Object key, Envelope message, long lingerMillis) {
+        synchronized(pendingLock) {
+            pending.put(new PendingKey(message.getTopic(), message.getPartition(), key), message);
+            if(!flushScheduled) {
+                flushScheduled = true;
+                Channel channel = getDataChannel();
+                EventExecutorGroup executor = channel != null 
+                        ? channel.eventLoop() : Transport.INSTANCE.getGroup();
+                executor.schedule(this::flushConflated, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flushConflated() {
+        Map<PendingKey, Envelope> ready;
+        synchronized(pendingLock) {
+            ready = pending;
+            pending = new LinkedHashMap<>();
+            flushScheduled = false;
+        }
+
+        // Each send stands on its own, a failing key must not lose the rest.
+        for(Envelope message : ready.values()) {
+            try {
+                send(message);
+            } catch(IOException | RuntimeException ex) {
+                LOG.error("Cannot send conflated message on topic " + message.getTopic() 
+                        + " to " + getIp() + ":" + getDataPort(), ex);
+            }
+        }
+    }
+
+    /**
+     * Holds the writes a full outbound buffer turned into pending writes and 
+     * wakes senders waiting for room. One instance belongs to one channel. 
+     * Pending writes are only written, failed or expired on the channel's 
+     * event loop.
+     */
+    private class WritabilityHandler extends ChannelInboundHandlerAdapter {
+
+        private final Queue<Deferred> deferred = new ConcurrentLinkedQueue<>();
+
+        boolean hasDeferred() {
+            return !deferred.isEmpty();
+        }
+
+        ChannelFuture defer(Channel channel, Object msg) {
+            ChannelPromise promise = channel.newPromise();
+            if(!channel.isActive()) {
+                ReferenceCountUtil.release(msg);
+                return promise.setFailure(new ClosedChannelException());
+            }
+
+            Deferred write = new Deferred(msg, promise);
+            deferred.add(write);
+            write.expiry = channel.eventLoop().schedule(
+                    () -> expire(write), blockTimeout, TimeUnit.MILLISECONDS);
+            if(channel.isWritable()) {
+                // The buffer may have drained before the write was queued.
+                channel.eventLoop().execute(() -> drain(channel));
+            }
+            return promise;
+        }
+
+        private void drain(Channel channel) {
+            Deferred write;
+            while(channel.isWritable() && (write = deferred.poll()) != null) {
+                write.cancel();
+                doWrite(channel, write.msg, write.promise);
+            }
+        }
+
+        private void expire(Deferred write) {
+            if(deferred.remove(write)) {
+                ReferenceCountUtil.release(write.msg);
+                write.promise.tryFailure(new IOException("Timed out waiting on the outbound buffer to " 
+                        + getIp() + ":" + getDataPort()));
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            drain(ctx.channel());
+            synchronized(writability) {
+                writability.notifyAll();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Deferred write;
+            while((write = deferred.poll()) != null) {
+                write.cancel();
+                ReferenceCountUtil.release(write.msg);
+                write.promise.tryFailure(new ClosedChannelException());
+            }
+            synchronized(writability) {
+                writability.notifyAll();
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+
+    /**
+     * A write waiting for room in the outbound buffer.
+     */
+    private static final class Deferred {
+        private final Object msg;
+        private final ChannelPromise promise;
+        private volatile ScheduledFuture<?> expiry;
+
+        Deferred(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+
+        void cancel() {
+            ScheduledFuture<?> scheduled = expiry;
+            if(scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The identity of a conflated message.
+     */
+    private static final class PendingKey {
+        private final String topic;
+        private final String partition;
+        private final Object key;
+
+        PendingKey(String topic, String partition, Object key) {
+            this.topic = topic;
+            this.partition = partition;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey)obj;
+            return Objects.equals(topic, other.topic) 
+                    && Objects.equals(partition, other.partition) 
+                    && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topic, partition, key);
+        }
+    }
 }
@@ -31,23 +31,20 @@ package io.bigio.core.member;
 import io.bigio.Parameters;
 import io.bigio.core.Envelope;
 import io.bigio.core.GossipMessage;
-import io.bigio.core.codec.EnvelopeCodec;
+import io.bigio.core.codec.EnvelopeFrame;
 import io.bigio.core.codec.GossipCodec;
 import io.bigio.util.NetworkUtil;
 import io.bigio.util.RunningStatistics;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.bytes.ByteArrayDecoder;
 import io.netty.handler.codec.bytes.ByteArrayEncoder;
 import io.netty.handler.logging.LogLevel;
@@ -57,25 +54,12 @@ import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.security.GeneralSecurityException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.net.ssl.SSLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,35 +74,36 @@ public class RemoteMemberTCP extends RemoteMember {
     private static final String MAX_RETRY_COUNT_PROPERTY = "io.bigio.remote.maxRetry";
     private static final String RETRY_INTERVAL_PROPERTY = "io.bigio.remote.retryInterval";
     private static final String CONNECTION_TIMEOUT_PROPERTY = "io.bigio.remote.connectionTimeout";
+    public static final String FLUSH_BYTES_PROPERTY = "io.bigio.remote.flushBytes";
+    public static final String FLUSH_LINGER_PROPERTY = "io.bigio.remote.flushLingerMicros";
     private static final String DEFAULT_MAX_RETRY_COUNT = "3";
     private static final String DEFAULT_RETRY_INTERVAL = "2000";
     private static final String DEFAULT_CONNECTION_TIMEOUT = "5000";
-    private static final int CLIENT_THREAD_POOL_SIZE = 2;
-    private static final int GOSSIP_WORKER_THREADS = 2;
-    private static final int DATA_WORKER_THREADS = 2;
+    private static final String DEFAULT_FLUSH_BYTES = "65536";
+    private static final String DEFAULT_FLUSH_LINGER = "0";
     private static final Logger LOG = LoggerFactory.getLogger(RemoteMemberTCP.class);
 
     private int maxRetry;
     private long retryInterval;
     private int timeout;
+    private int flushBytes;
+    private long flushLinger;
     
     private final AtomicInteger gossipRetryCount = new AtomicInteger(0);
     private final AtomicInteger dataRetryCount = new AtomicInteger(0);
-    private final ScheduledExecutorService retryExecutor = Executors.newScheduledThreadPool(CLIENT_THREAD_POOL_SIZE);
-    private final ExecutorService serverExecutor = Executors.newFixedThreadPool(CLIENT_THREAD_POOL_SIZE);
 
-    private Channel gossipChannel = null;
-    private Channel dataChannel = null;
-    private EventLoopGroup gossipWorkerGroup = null;
-    private EventLoopGroup dataWorkerGroup = null;
+    private volatile boolean shuttingDown = false;
+
+    private volatile Channel gossipChannel = null;
+    private volatile Channel dataChannel = null;
+    // Header strings the receiving end of the data channel knows about.
+    private volatile Set<Integer> definedIds = ConcurrentHashMap.newKeySet();
+    // Session key the receiving end of the data channel is known to have.
+    private volatile SessionKey keySent = null;
 
     private final RunningStatistics gossipSizeStat = new RunningStatistics();
     private final RunningStatistics dataSizeStat = new RunningStatistics();
 
-    private Cipher cipher = null;
-    private Cipher symmetricCipher = null;
-    private SecretKey secretKey = null;
-    private PublicKey key = null;
 
     private SslContext sslContext;
 
@@ -138,6 +123,10 @@ public class RemoteMemberTCP extends RemoteMember {
                 RETRY_INTERVAL_PROPERTY, DEFAULT_RETRY_INTERVAL));
         timeout = Integer.parseInt(Parameters.INSTANCE.getProperty(
                 CONNECTION_TIMEOUT_PROPERTY, DEFAULT_CONNECTION_TIMEOUT));
+        flushBytes = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                FLUSH_BYTES_PROPERTY, DEFAULT_FLUSH_BYTES));
+        flushLinger = Long.parseLong(Parameters.INSTANCE.getProperty(
+                FLUSH_LINGER_PROPERTY, DEFAULT_FLUSH_LINGER));
 
         if(useSSL) {
             if(useSelfSigned) {
@@ -166,71 +155,114 @@ public class RemoteMemberTCP extends RemoteMember {
             return;
         }
 
-        serverExecutor.submit(() -> {
-            initializeGossipClient();
-        });
-        serverExecutor.submit(() -> {
-            initializeDataClient();
-        });
+        initializeGossipClient();
+        initializeDataClient();
 
-        if(publicKey != null) {
-            try {
-                this.cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-                this.key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey));
-
-                // generate symmetric key
-                this.symmetricCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                KeyGenerator symmetricKeyGen = KeyGenerator.getInstance("AES");
-                symmetricKeyGen.init(128);
-                this.secretKey = symmetricKeyGen.generateKey();
-            } catch (NoSuchAlgorithmException ex) {
-                LOG.error("Cannot find encryption algorithm.", ex);
-            } catch (NoSuchPaddingException ex) {
-                LOG.error("Cannot construct cipher.", ex);
-            } catch (InvalidKeySpecException ex) {
-                LOG.error("Invalid key specification.", ex);
-            } 
-        }
+        initializeEncryption();
     }
 
     @Override
     public void send(final Envelope message) throws IOException {
-        if(publicKey != null) {
+        sendEnvelope(message, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(final Envelope message) {
+        try {
+            return completion(sendEnvelope(message, true));
+        } catch(IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    private ChannelFuture sendEnvelope(final Envelope message, boolean async) throws IOException {
+        SessionKey session = null;
+        boolean carryKey = false;
+        if(publicKey != null && isEncrypted(message.getTopic())) {
             try {
-                // encrypt data with symmetric key
-                byte[] iv = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-                IvParameterSpec ivspec = new IvParameterSpec(iv);
-                synchronized(symmetricCipher) {
-                    symmetricCipher.init(Cipher.ENCRYPT_MODE, secretKey, ivspec);
-                    message.setPayload(symmetricCipher.doFinal(message.getPayload()));
-                }
+                session = getSessionKey();
+                // The connection is ordered, so once one message carrying 
+                // the wrapped key is through the rest can leave it out.
+                carryKey = session != keySent;
+                encrypt(message, session, carryKey);
+            } catch (GeneralSecurityException ex) {
+                LOG.error("Cannot encrypt message.", ex);
+                return null;
+            }
+        }
 
-                // encrypt key with asymmetric key
-                synchronized(cipher) {
-                    cipher.init(Cipher.ENCRYPT_MODE, key);
-                    message.setKey(cipher.doFinal(secretKey.getEncoded()));
-                }
-                message.setEncrypted(true);
-            } catch (IllegalBlockSizeException ex) {
-                LOG.error("Wrong block size.", ex);
-            } catch (BadPaddingException ex) {
-                LOG.error("Bad padding.", ex);
-            } catch (InvalidKeyException ex) {
-                LOG.error("Invalid private key.", ex);
-            } catch (InvalidAlgorithmParameterException ex) {
-                LOG.error("Invalid algorithm parameter.", ex);
+        EnvelopeFrame frame = new EnvelopeFrame(message);
+        try {
+            ChannelFuture written = writeFrame(frame, async);
+            if(carryKey && written != null) {
+                final SessionKey sent = session;
+                written.addListener((ChannelFuture future) -> {
+                    if(future.isSuccess() && future.channel() == dataChannel) {
+                        keySent = sent;
+                    }
+                });
             }
+            return written;
+        } finally {
+            frame.release();
         }
+    }
 
-        byte[] bytes = EnvelopeCodec.encode(message);
+    @Override
+    public void sendFrame(final EnvelopeFrame frame) throws IOException {
+        writeFrame(frame, false);
+    }
 
-        if(LOG.isTraceEnabled()) {
-            dataSizeStat.push(bytes.length);
+    @Override
+    public CompletableFuture<Void> sendFrameAsync(final EnvelopeFrame frame) {
+        try {
+            return completion(writeFrame(frame, true));
+        } catch(IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    private ChannelFuture writeFrame(final EnvelopeFrame frame, boolean async) throws IOException {
+        Channel channel = dataChannel;
+        if(channel == null) {
+            return null;
+        }
+
+        if(isVersion1(frame)) {
+            return write(channel, frame.getVersion1(channel.alloc()).duplicate().retain(), async);
+        }
+
+        final Set<Integer> defined = definedIds;
+        if(frame.isDefined(defined)) {
+            return write(channel, frame.getCompact(channel.alloc()).duplicate().retain(), async);
+        }
+
+        // Only rely on the definitions once they are on the wire, so 
+        // nothing referring to them can overtake this frame.
+        ChannelFuture written = write(channel, frame.getDefining(channel.alloc()).duplicate().retain(), async);
+        if(written != null) {
+            written.addListener((ChannelFuture future) -> {
+                if(future.isSuccess()) {
+                    frame.define(defined);
+                }
+            });
         }
+        return written;
+    }
 
-        if(dataChannel != null) {
-            dataChannel.writeAndFlush(Unpooled.wrappedBuffer(bytes));
+    @Override
+    protected ChannelFuture doWrite(Channel channel, Object msg, ChannelPromise promise) {
+        if(LOG.isTraceEnabled()) {
+            dataSizeStat.push(((ByteBuf)msg).readableBytes());
         }
+
+        // The flush is left to the coalescing handler in the pipeline.
+        return channel.write(msg, promise);
+    }
+
+    @Override
+    protected Channel getDataChannel() {
+        return dataChannel;
     }
 
     @Override
@@ -252,12 +284,16 @@ public class RemoteMemberTCP extends RemoteMember {
             LOG.trace("Closing connections to " + getIp() + ":" + getGossipPort() + ":" + getDataPort());
         }
 
-        if(gossipWorkerGroup != null) {
-            gossipWorkerGroup.shutdownGracefully();
+        shuttingDown = true;
+
+        Channel channel = gossipChannel;
+        if(channel != null) {
+            channel.close();
         }
-        
-        if(dataWorkerGroup != null) {
-            dataWorkerGroup.shutdownGracefully();
+
+        channel = dataChannel;
+        if(channel != null) {
+            channel.close();
         }
 
         if(LOG.isTraceEnabled()) {
@@ -273,17 +309,16 @@ public class RemoteMemberTCP extends RemoteMember {
     private void initializeGossipClient() {
         LOG.trace("Initializing gossip client");
 
-        gossipWorkerGroup = new NioEventLoopGroup(GOSSIP_WORKER_THREADS);
             
         Bootstrap b = new Bootstrap();
-        b.group(gossipWorkerGroup);
-        b.channel(NioSocketChannel.class);
+        b.group(Transport.INSTANCE.getGroup());
+        b.channel(Transport.INSTANCE.getSocketChannel());
         b.option(ChannelOption.SO_KEEPALIVE, true);
         b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout);
         b.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                 ch.pipeline().addLast("encoder", new ByteArrayEncoder());
                 ch.pipeline().addLast("decoder", new ByteArrayDecoder());
                 ch.pipeline().addLast(new GossipExceptionHandler());
@@ -299,29 +334,32 @@ public class RemoteMemberTCP extends RemoteMember {
             }
         });
 
-        // Start the client.
-        ChannelFuture future = b.connect(getIp(), getGossipPort()).awaitUninterruptibly();
+        Transport.INSTANCE.configure(b, false);
 
-        if(future.isCancelled()) {
-            gossipChannel = null;
-        } else if(!future.isSuccess()) {
-            gossipChannel = null;
-            retryGossipConnection();
-        } else {
-            gossipChannel = future.channel();
-            setStatus(MemberStatus.Alive);
-            updateMember();
-        }
+        // Start the client.
+        b.connect(getIp(), getGossipPort()).addListener((ChannelFuture future) -> {
+            if(future.isCancelled()) {
+                gossipChannel = null;
+            } else if(!future.isSuccess()) {
+                gossipChannel = null;
+                retryGossipConnection();
+            } else if(shuttingDown) {
+                future.channel().close();
+            } else {
+                gossipChannel = future.channel();
+                setStatus(MemberStatus.Alive);
+                updateMember();
+            }
+        });
     }
 
     private void initializeDataClient() {
         LOG.trace("Initializing data client");
 
-        dataWorkerGroup = new NioEventLoopGroup(DATA_WORKER_THREADS);
             
         Bootstrap b = new Bootstrap();
-        b.group(dataWorkerGroup)
-         .channel(NioSocketChannel.class)
+        b.group(Transport.INSTANCE.getGroup())
+         .channel(Transport.INSTANCE.getSocketChannel())
          .option(ChannelOption.SO_SNDBUF, 262144)
          .option(ChannelOption.SO_RCVBUF, 262144)
          .option(ChannelOption.SO_KEEPALIVE, true)
@@ -330,11 +368,13 @@ public class RemoteMemberTCP extends RemoteMember {
          .handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
+                watchWritability(ch);
                 if(useSSL) {
                     ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), ip, dataPort));
                 }
                 ch.pipeline().addLast("encoder", new ByteArrayEncoder());
+                ch.pipeline().addLast("flusher", new FlushCoalescingHandler(flushBytes, flushLinger));
                 ch.pipeline().addLast("decoder", new ByteArrayDecoder());
                 ch.pipeline().addLast(new DataExceptionHandler());
                 if(LOG.isTraceEnabled()) {
@@ -349,28 +389,32 @@ public class RemoteMemberTCP extends RemoteMember {
             }
         });
 
-        // Start the client.
-        ChannelFuture future = b.connect(getIp(), getDataPort()).awaitUninterruptibly();
-
-        if(future.isCancelled()) {
-            dataChannel = null;
-        } else if(!future.isSuccess()) {
-            dataChannel = null;
-            retryDataConnection();
-        } else {
-            dataChannel = future.channel();
+        Transport.INSTANCE.configure(b, false);
 
-            try {
-                dataChannel.closeFuture().sync();
-            } catch (InterruptedException ex) {
-                LOG.debug("Interrupted waiting for client to shutdown.", ex);
+        // Start the client.
+        b.connect(getIp(), getDataPort()).addListener((ChannelFuture future) -> {
+            if(future.isCancelled()) {
+                dataChannel = null;
+            } else if(!future.isSuccess()) {
+                dataChannel = null;
+                retryDataConnection();
+            } else if(shuttingDown) {
+                future.channel().close();
+            } else {
+                definedIds = ConcurrentHashMap.newKeySet();
+                keySent = null;
+                dataChannel = future.channel();
             }
-        }
+        });
     }
 
     private void retryGossipConnection() {
+        if(shuttingDown) {
+            return;
+        }
+
         if(gossipRetryCount.getAndIncrement() < maxRetry) {
-            retryExecutor.schedule(() -> {
+            Transport.INSTANCE.getGroup().schedule(() -> {
                 initializeGossipClient();
             }, retryInterval, TimeUnit.MILLISECONDS);
         } else {
@@ -379,8 +423,12 @@ public class RemoteMemberTCP extends RemoteMember {
     }
 
     private void retryDataConnection() {
+        if(shuttingDown) {
+            return;
+        }
+
         if(dataRetryCount.getAndIncrement() < maxRetry) {
-            retryExecutor.schedule(() -> {
+            Transport.INSTANCE.getGroup().schedule(() -> {
                 initializeDataClient();
             }, retryInterval, TimeUnit.MILLISECONDS);
         } else {
@@ -31,28 +31,21 @@ package io.bigio.core.member;
 import io.bigio.Parameters;
 import io.bigio.core.Envelope;
 import io.bigio.core.GossipMessage;
-import io.bigio.core.codec.EnvelopeCodec;
+import io.bigio.core.codec.EnvelopeFrame;
 import io.bigio.core.codec.GossipCodec;
 import io.bigio.util.NetworkUtil;
 import io.bigio.util.RunningStatistics;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.bootstrap.ChannelFactory;
-import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.InternetProtocolFamily;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.bytes.ByteArrayDecoder;
 import io.netty.handler.codec.bytes.ByteArrayEncoder;
 import io.netty.handler.logging.LogLevel;
@@ -60,25 +53,10 @@ import io.netty.handler.logging.LoggingHandler;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,9 +73,6 @@ public class RemoteMemberUDP extends RemoteMember {
     private static final String DEFAULT_MAX_RETRY_COUNT = "3";
     private static final String DEFAULT_RETRY_INTERVAL = "2000";
     private static final String DEFAULT_CONNECTION_TIMEOUT = "5000";
-    private static final int CLIENT_THREAD_POOL_SIZE = 2;
-    private static final int GOSSIP_WORKER_THREADS = 2;
-    private static final int DATA_WORKER_THREADS = 2;
     private static final Logger LOG = LoggerFactory.getLogger(RemoteMemberUDP.class);
 
     private int maxRetry;
@@ -106,23 +81,17 @@ public class RemoteMemberUDP extends RemoteMember {
 
     private final AtomicInteger gossipRetryCount = new AtomicInteger(0);
     private final AtomicInteger dataRetryCount = new AtomicInteger(0);
-    private final ScheduledExecutorService retryExecutor = Executors.newScheduledThreadPool(CLIENT_THREAD_POOL_SIZE);
-    private final ExecutorService serverExecutor = Executors.newFixedThreadPool(CLIENT_THREAD_POOL_SIZE);
 
-    private Channel gossipChannel = null;
-    private DatagramChannel dataChannel = null;
-    private EventLoopGroup gossipWorkerGroup = null;
-    private EventLoopGroup dataWorkerGroup = null;
+    private volatile boolean shuttingDown = false;
+
+    private volatile Channel gossipChannel = null;
+    private volatile DatagramChannel dataChannel = null;
 
     private final RunningStatistics gossipSizeStat = new RunningStatistics();
     private final RunningStatistics dataSizeStat = new RunningStatistics();
 
     private InetSocketAddress address;
 
-    private Cipher cipher = null;
-    private Cipher symmetricCipher = null;
-    private SecretKey secretKey = null;
-    private PublicKey key = null;
 
     public RemoteMemberUDP(MemberHolder memberHolder) {
         super(memberHolder);
@@ -153,71 +122,96 @@ public class RemoteMemberUDP extends RemoteMember {
 
         address = new InetSocketAddress(getIp(), getDataPort());
 
-        serverExecutor.submit(() -> {
-            initializeGossipClient();
-        });
-        serverExecutor.submit(() -> {
-            initializeDataClient();
-        });
+        initializeGossipClient();
+        initializeDataClient();
+
+        initializeEncryption();
+    }
+
+    @Override
+    public void send(final Envelope message) throws IOException {
+        sendEnvelope(message, false);
+    }
 
-        if (publicKey != null) {
+    @Override
+    public CompletableFuture<Void> sendAsync(final Envelope message) {
+        try {
+            return completion(sendEnvelope(message, true));
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    private ChannelFuture sendEnvelope(final Envelope message, boolean async) throws IOException {
+        if (publicKey != null && isEncrypted(message.getTopic())) {
             try {
-                this.cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-                this.key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey));
-
-                // generate symmetric key
-                this.symmetricCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                KeyGenerator symmetricKeyGen = KeyGenerator.getInstance("AES");
-                symmetricKeyGen.init(128);
-                this.secretKey = symmetricKeyGen.generateKey();
-            } catch (NoSuchAlgorithmException ex) {
-                LOG.error("Cannot find encryption algorithm.", ex);
-            } catch (NoSuchPaddingException ex) {
-                LOG.error("Cannot construct cipher.", ex);
-            } catch (InvalidKeySpecException ex) {
-                LOG.error("Invalid key specification.", ex);
+                // Datagrams can be lost, so every one carries the wrapped 
+                // key. Receivers only unwrap it the first time they see it.
+                encrypt(message, getSessionKey(), true);
+            } catch (GeneralSecurityException ex) {
+                LOG.error("Cannot encrypt message.", ex);
+                return null;
             }
         }
+
+        EnvelopeFrame frame = new EnvelopeFrame(message);
+        try {
+            return writeFrame(frame, async);
+        } finally {
+            frame.release();
+        }
     }
 
     @Override
-    public void send(final Envelope message) throws IOException {
-        if (publicKey != null) {
-            try {
-                // encrypt data with symmetric key
-                byte[] iv = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-                IvParameterSpec ivspec = new IvParameterSpec(iv);
-                synchronized (symmetricCipher) {
-                    symmetricCipher.init(Cipher.ENCRYPT_MODE, secretKey, ivspec);
-                    message.setPayload(symmetricCipher.doFinal(message.getPayload()));
-                }
+    public void sendFrame(final EnvelopeFrame frame) throws IOException {
+        writeFrame(frame, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendFrameAsync(final EnvelopeFrame frame) {
+        try {
+            return completion(writeFrame(frame, true));
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    private ChannelFuture writeFrame(final EnvelopeFrame frame, boolean async) throws IOException {
+        DatagramChannel channel = dataChannel;
+        if (channel == null) {
+            return null;
+        }
 
-                // encrypt key with asymmetric key
-                synchronized (cipher) {
-                    cipher.init(Cipher.ENCRYPT_MODE, key);
-                    message.setKey(cipher.doFinal(secretKey.getEncoded()));
+        if (isVersion1(frame)) {
+            // Version 1 receivers read one envelope per datagram.
+            ByteBuf frames = frame.getVersion1(channel.alloc());
+            ChannelFuture written = null;
+            for (int i = frames.readerIndex(); i < frames.writerIndex(); ) {
+                int length = frames.getUnsignedShort(i) + 2;
+                ByteBuf bytes = frames.slice(i, length).retain();
+                if (LOG.isTraceEnabled()) {
+                    dataSizeStat.push(length);
                 }
-                message.setEncrypted(true);
-            } catch (IllegalBlockSizeException ex) {
-                LOG.error("Wrong block size.", ex);
-            } catch (BadPaddingException ex) {
-                LOG.error("Bad padding.", ex);
-            } catch (InvalidKeyException ex) {
-                LOG.error("Invalid private key.", ex);
-            } catch (InvalidAlgorithmParameterException ex) {
-                LOG.error("Invalid algorithm parameter.", ex);
+                written = write(channel, new DatagramPacket(bytes, address), async);
+                i += length;
             }
+            return written;
         }
 
-        byte[] bytes = EnvelopeCodec.encode(message);
+        // Datagrams can be lost or reordered, so every one carries its 
+        // header strings in full.
+        ByteBuf bytes = frame.getLiteral(channel.alloc()).duplicate().retain();
 
         if (LOG.isTraceEnabled()) {
-            dataSizeStat.push(bytes.length);
+            dataSizeStat.push(bytes.readableBytes());
         }
 
-        if (dataChannel != null) {
-            dataChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(bytes), address));
-        }
+        return write(channel, new DatagramPacket(bytes, address), async);
+    }
+
+    @Override
+    protected Channel getDataChannel() {
+        return dataChannel;
     }
 
     @Override
@@ -239,12 +233,16 @@ public class RemoteMemberUDP extends RemoteMember {
             LOG.trace("Closing connections to " + getIp() + ":" + getGossipPort() + ":" + getDataPort());
         }
 
-        if (gossipWorkerGroup != null) {
-            gossipWorkerGroup.shutdownGracefully();
+        shuttingDown = true;
+
+        Channel channel = gossipChannel;
+        if (channel != null) {
+            channel.close();
         }
 
-        if (dataWorkerGroup != null) {
-            dataWorkerGroup.shutdownGracefully();
+        channel = dataChannel;
+        if (channel != null) {
+            channel.close();
         }
 
         if (LOG.isTraceEnabled()) {
@@ -260,17 +258,15 @@ public class RemoteMemberUDP extends RemoteMember {
     private void initializeGossipClient() {
         LOG.trace("Initializing gossip client");
 
-        gossipWorkerGroup = new NioEventLoopGroup(GOSSIP_WORKER_THREADS);
-
         Bootstrap b = new Bootstrap();
-        b.group(gossipWorkerGroup);
-        b.channel(NioSocketChannel.class);
+        b.group(Transport.INSTANCE.getGroup());
+        b.channel(Transport.INSTANCE.getSocketChannel());
         b.option(ChannelOption.SO_KEEPALIVE, true);
         b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout);
         b.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                ch.config().setAllocator(Transport.INSTANCE.getAllocator());
                 ch.pipeline().addLast("encoder", new ByteArrayEncoder());
                 ch.pipeline().addLast("decoder", new ByteArrayDecoder());
                 ch.pipeline().addLast(new GossipExceptionHandler());
@@ -286,42 +282,36 @@ public class RemoteMemberUDP extends RemoteMember {
             }
         });
 
-        // Start the client.
-        ChannelFuture future = b.connect(getIp(), getGossipPort()).awaitUninterruptibly();
+        Transport.INSTANCE.configure(b, false);
 
-        if (future.isCancelled()) {
-            gossipChannel = null;
-        } else if (!future.isSuccess()) {
-            gossipChannel = null;
-            retryGossipConnection();
-        } else {
-            gossipChannel = future.channel();
-            setStatus(MemberStatus.Alive);
-            updateMember();
-        }
+        // Start the client.
+        b.connect(getIp(), getGossipPort()).addListener((ChannelFuture future) -> {
+            if (future.isCancelled()) {
+                gossipChannel = null;
+            } else if (!future.isSuccess()) {
+                gossipChannel = null;
+                retryGossipConnection();
+            } else if (shuttingDown) {
+                future.channel().close();
+            } else {
+                gossipChannel = future.channel();
+                setStatus(MemberStatus.Alive);
+                updateMember();
+            }
+        });
     }
 
     private void initializeDataClient() {
         LOG.trace("Initializing data client");
 
-        dataWorkerGroup = new NioEventLoopGroup(DATA_WORKER_THREADS);
-
         Bootstrap b = new Bootstrap();
-        b.group(dataWorkerGroup)
-                .channelFactory(new ChannelFactory<Channel>() {
-                    @Override
-                    public Channel newChannel() {
-                        return new NioDatagramChannel(InternetProtocolFamily.IPv4);
-                    }
-
-                    @Override
-                    public String toString() {
-                        return NioDatagramChannel.class.getSimpleName() + ".class";
-                    }
-                }).handler(new ChannelInitializer<DatagramChannel>() {
+        b.group(Transport.INSTANCE.getGroup())
+                .channelFactory(Transport.INSTANCE.getDatagramChannelFactory())
+                .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
                     public void initChannel(DatagramChannel ch) throws Exception {
-                        ch.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+                        ch.config().setAllocator(Transport.INSTANCE.getAllocator());
+                        watchWritability(ch);
                         ch.pipeline().addLast("encoder", new ByteArrayEncoder());
                         ch.pipeline().addLast("decoder", new ByteArrayDecoder());
                         ch.pipeline().addLast(new DataExceptionHandler());
@@ -337,28 +327,32 @@ public class RemoteMemberUDP extends RemoteMember {
                     }
                 });
 
-        // Start the client.
-        ChannelFuture future = b.connect(getIp(), getDataPort()).awaitUninterruptibly();
-
-        if (future.isCancelled()) {
-            dataChannel = null;
-        } else if (!future.isSuccess()) {
-            dataChannel = null;
-            retryDataConnection();
-        } else {
-            dataChannel = (DatagramChannel) future.channel();
-
-            try {
-                dataChannel.closeFuture().sync();
-            } catch (InterruptedException ex) {
-                LOG.debug("Interrupted waiting for client to shutdown.", ex);
+        Transport.INSTANCE.configure(b, false);
+
+        // Start the client. Every datagram is addressed, so the channel is 
+        // bound rather than connected, which the epoll channel does not 
+        // support for writes.
+        b.bind(0).addListener((ChannelFuture future) -> {
+            if (future.isCancelled()) {
+                dataChannel = null;
+            } else if (!future.isSuccess()) {
+                dataChannel = null;
+                retryDataConnection();
+            } else if (shuttingDown) {
+                future.channel().close();
+            } else {
+                dataChannel = (DatagramChannel) future.channel();
             }
-        }
+        });
     }
 
     private void retryGossipConnection() {
+        if (shuttingDown) {
+            return;
+        }
+
         if (gossipRetryCount.getAndIncrement() < maxRetry) {
-            retryExecutor.schedule(() -> {
+            Transport.INSTANCE.getGroup().schedule(() -> {
                 initializeGossipClient();
             }, retryInterval, TimeUnit.MILLISECONDS);
         } else {
@@ -367,8 +361,12 @@ public class RemoteMemberUDP extends RemoteMember {
     }
 
     private void retryDataConnection() {
+        if (shuttingDown) {
+            return;
+        }
+
         if (dataRetryCount.getAndIncrement() < maxRetry) {
-            retryExecutor.schedule(() -> {
+            Transport.INSTANCE.getGroup().schedule(() -> {
                 initializeDataClient();
             }, retryInterval, TimeUnit.MILLISECONDS);
         } else {
@@ -400,7 +398,7 @@ public class RemoteMemberUDP extends RemoteMember {
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            retryGossipConnection();
+            retryDataConnection();
         }
     }
 }
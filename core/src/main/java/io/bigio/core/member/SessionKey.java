@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.bigio.core.member;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * A symmetric key used for the encrypted traffic sent to one remote member. 
+ * The key is wrapped with the member's public key once, when it is 
+ * generated, and the wrapped form is sent along with messages until the 
+ * member is known to have it.
+ * 
+ * <p>
+ * Payloads are sealed with AES/GCM and prefixed with their nonce: a random 
+ * salt fixed for the key followed by a counter, so no nonce repeats under 
+ * one key. Ciphers are kept per thread, so any number of threads can 
+ * encrypt and decrypt at once.
+ * </p>
+ * 
+ * @author Andy Trimble
+ */
+final class SessionKey {
+
+    static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+    static final String LEGACY_AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(
+            () -> newCipher(AES_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> LEGACY_CIPHER = ThreadLocal.withInitial(
+            () -> newCipher(LEGACY_AES_TRANSFORMATION));
+
+    private final int id;
+    private final SecretKey key;
+    private final byte[] wrapped;
+    private final long created = System.currentTimeMillis();
+    private final int salt = RANDOM.nextInt();
+    private final AtomicLong counter = new AtomicLong();
+
+    SessionKey(int id, PublicKey publicKey) throws GeneralSecurityException {
+        this.id = id;
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128);
+        this.key = keyGen.generateKey();
+
+        Cipher rsa = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+        this.wrapped = rsa.doFinal(key.getEncoded());
+    }
+
+    /**
+     * Pick a starting key id. Ids are random so a restarted sender does not 
+     * reuse the ids a receiver may still have cached.
+     * 
+     * @return a non-zero key id.
+     */
+    static int randomId() {
+        int id;
+        do {
+            id = RANDOM.nextInt();
+        } while(id == 0);
+        return id;
+    }
+
+    /**
+     * Get the id the key is known by on the wire.
+     * 
+     * @return the key id.
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Get the key wrapped with the remote member's public key.
+     * 
+     * @return the wrapped key.
+     */
+    byte[] getWrapped() {
+        return wrapped;
+    }
+
+    /**
+     * Determine whether the key has been in use for longer than the given 
+     * interval.
+     * 
+     * @param interval the rekey interval in milliseconds.
+     * @return true if the key should be replaced.
+     */
+    boolean isExpired(long interval) {
+        return interval > 0 && System.currentTimeMillis() - created >= interval;
+    }
+
+    /**
+     * Seal a payload under the next nonce.
+     * 
+     * @param plaintext the payload.
+     * @return the nonce followed by the sealed payload.
+     * @throws GeneralSecurityException in case of an encryption error.
+     */
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        long count = counter.incrementAndGet();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        for(int i = 0; i < 4; ++i) {
+            nonce[i] = (byte)(salt >>> (24 - 8 * i));
+        }
+        for(int i = 0; i < 8; ++i) {
+            nonce[4 + i] = (byte)(count >>> (56 - 8 * i));
+        }
+
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, nonce));
+        byte[] out = new byte[NONCE_LENGTH + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(nonce, 0, out, 0, NONCE_LENGTH);
+        cipher.doFinal(plaintext, 0, plaintext.length, out, NONCE_LENGTH);
+        return out;
+    }
+
+    /**
+     * Open a payload sealed with a session key.
+     * 
+     * @param key the session key.
+     * @param sealed the nonce followed by the sealed payload.
+     * @return the payload.
+     * @throws GeneralSecurityException if the payload cannot be opened.
+     */
+    static byte[] decrypt(SecretKey key, byte[] sealed) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, sealed, 0, NONCE_LENGTH));
+        return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+
+    /**
+     * Decrypt a payload from a sender that wraps a new key for every 
+     * message and encrypts under an all-zero IV.
+     * 
+     * @param key the message key.
+     * @param encrypted the encrypted payload.
+     * @return the payload.
+     * @throws GeneralSecurityException if the payload cannot be decrypted.
+     */
+    static byte[] decryptLegacy(SecretKey key, byte[] encrypted) throws GeneralSecurityException {
+        Cipher cipher = LEGACY_CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+        return cipher.doFinal(encrypted);
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch(GeneralSecurityException ex) {
+            throw new IllegalStateException("Cannot construct " + transformation + " cipher.", ex);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015, Archarithms Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package io.bigio.core.member;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import io.bigio.Parameters;
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.ChannelFactory;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.InternetProtocolFamily;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The networking resources shared by every member. Connections to all 
+ * remote members are multiplexed over one event loop group, which is also 
+ * used to schedule reconnection attempts, so the number of threads does not 
+ * grow with the size of the cluster.
+ * 
+ * <p>
+ * On Linux the native epoll transport is used unless it is disabled or 
+ * cannot be loaded, in which case everything falls back to NIO. The epoll 
+ * artifact is an optional dependency; every reference to it is kept in 
+ * {@link Native} so the class still loads when it is not on the classpath.
+ * </p>
+ * 
+ * <p>
+ * All channels share one buffer allocator, pooled by default. Buffers the 
+ * leak detector reports as garbage collected without being released are 
+ * counted, see {@link #getDetectedLeaks()}.
+ * </p>
+ * 
+ * @author Andy Trimble
+ */
+public enum Transport {
+    INSTANCE;
+
+    private static final String THREADS_PROPERTY = "io.bigio.transport.threads";
+    private static final String EPOLL_PROPERTY = "io.bigio.transport.epoll";
+    private static final String EDGE_TRIGGERED_PROPERTY = "io.bigio.transport.edgeTriggered";
+    private static final String REUSE_PORT_PROPERTY = "io.bigio.transport.reusePort";
+    private static final String DEFAULT_EPOLL = "true";
+    private static final String DEFAULT_EDGE_TRIGGERED = "true";
+    private static final String DEFAULT_REUSE_PORT = "false";
+
+    private static final String POOLED_PROPERTY = "io.bigio.allocator.pooled";
+    private static final String PREFER_DIRECT_PROPERTY = "io.bigio.allocator.preferDirect";
+    private static final String HEAP_ARENAS_PROPERTY = "io.bigio.allocator.heapArenas";
+    private static final String DIRECT_ARENAS_PROPERTY = "io.bigio.allocator.directArenas";
+    private static final String LEAK_DETECTION_PROPERTY = "io.bigio.allocator.leakDetection";
+    private static final String DEFAULT_POOLED = "true";
+    private static final String DEFAULT_PREFER_DIRECT = "true";
+    private static final int PAGE_SIZE = 8192;
+    private static final int MAX_ORDER = 11;
+
+    private final boolean epoll;
+    private final boolean edgeTriggered;
+    private final boolean reusePort;
+    private final EventLoopGroup group;
+    private final ByteBufAllocator allocator;
+    private final AtomicLong leaks = new AtomicLong();
+
+    private Transport() {
+        boolean useEpoll = Boolean.parseBoolean(
+                Parameters.INSTANCE.getProperty(EPOLL_PROPERTY, DEFAULT_EPOLL));
+        if(useEpoll) {
+            try {
+                if(!Native.isAvailable()) {
+                    Logger log = LoggerFactory.getLogger(Transport.class);
+                    log.debug("Native epoll transport unavailable, using NIO.", Native.unavailabilityCause());
+                    useEpoll = false;
+                }
+            } catch(NoClassDefFoundError ex) {
+                Logger log = LoggerFactory.getLogger(Transport.class);
+                log.debug("Native epoll transport not on the classpath, using NIO.");
+                useEpoll = false;
+            }
+        }
+
+        int threads = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                THREADS_PROPERTY, 
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        // Daemon threads, the group outlives any single BigIO instance.
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("bigio-transport", true);
+        EventLoopGroup epollGroup = null;
+        if(useEpoll) {
+            // The native library can load and still fail once used, e.g. on 
+            // runtimes newer than this version of Netty supports.
+            try {
+                epollGroup = Native.newGroup(threads, threadFactory);
+            } catch(Exception | LinkageError ex) {
+                Logger log = LoggerFactory.getLogger(Transport.class);
+                log.warn("Cannot start native epoll transport, using NIO.", ex);
+                useEpoll = false;
+            }
+        }
+        epoll = useEpoll;
+
+        edgeTriggered = Boolean.parseBoolean(
+                Parameters.INSTANCE.getProperty(EDGE_TRIGGERED_PROPERTY, DEFAULT_EDGE_TRIGGERED));
+        reusePort = epoll && Boolean.parseBoolean(
+                Parameters.INSTANCE.getProperty(REUSE_PORT_PROPERTY, DEFAULT_REUSE_PORT));
+
+        group = epollGroup != null ? epollGroup : newGroup(threads, threadFactory);
+
+        boolean preferDirect = Boolean.parseBoolean(
+                Parameters.INSTANCE.getProperty(PREFER_DIRECT_PROPERTY, DEFAULT_PREFER_DIRECT));
+        if(Boolean.parseBoolean(Parameters.INSTANCE.getProperty(POOLED_PROPERTY, DEFAULT_POOLED))) {
+            int heapArenas = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                    HEAP_ARENAS_PROPERTY, 
+                    Integer.toString(PooledByteBufAllocator.DEFAULT.numHeapArenas())));
+            int directArenas = Integer.parseInt(Parameters.INSTANCE.getProperty(
+                    DIRECT_ARENAS_PROPERTY, 
+                    Integer.toString(PooledByteBufAllocator.DEFAULT.numDirectArenas())));
+            allocator = new PooledByteBufAllocator(
+                    preferDirect, heapArenas, directArenas, PAGE_SIZE, MAX_ORDER);
+        } else {
+            allocator = new UnpooledByteBufAllocator(preferDirect);
+        }
+
+        String leakDetection = Parameters.INSTANCE.getProperty(LEAK_DETECTION_PROPERTY);
+        if(leakDetection != null) {
+            try {
+                ResourceLeakDetector.setLevel(
+                        ResourceLeakDetector.Level.valueOf(leakDetection.trim().toUpperCase()));
+            } catch(IllegalArgumentException ex) {
+                Logger log = LoggerFactory.getLogger(Transport.class);
+                log.warn("Unknown leak detection level '" + leakDetection 
+                        + "', using " + ResourceLeakDetector.getLevel() + ".");
+            }
+        }
+
+        // Netty only reports leaks through its logger, so count them there.
+        Logger detectorLog = LoggerFactory.getLogger(ResourceLeakDetector.class);
+        if(detectorLog instanceof ch.qos.logback.classic.Logger) {
+            LeakCounter counter = new LeakCounter(leaks);
+            counter.setContext(((ch.qos.logback.classic.Logger)detectorLog).getLoggerContext());
+            counter.start();
+            ((ch.qos.logback.classic.Logger)detectorLog).addAppender(counter);
+        }
+    }
+
+    /**
+     * Get the event loop group shared by all remote members.
+     * 
+     * @return the event loop group.
+     */
+    public EventLoopGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Get the buffer allocator shared by all channels.
+     * 
+     * @return the buffer allocator.
+     */
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Get the number of leaked buffers reported by the leak detector. Only 
+     * sampled buffers are tracked and each distinct leak trace is reported 
+     * once, so this is a lower bound. It stays at zero when leak detection 
+     * is disabled.
+     * 
+     * @return the number of leaks detected so far.
+     */
+    public long getDetectedLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Determine whether the native epoll transport is in use.
+     * 
+     * @return true if epoll is in use, false for NIO.
+     */
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * Determine whether data ports should be bound once per event loop with 
+     * SO_REUSEPORT, letting the kernel spread traffic across them.
+     * 
+     * @return true if data ports are bound with SO_REUSEPORT.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Create an event loop group for the transport in use.
+     * 
+     * @param threads the number of threads.
+     * @return a new event loop group.
+     */
+    public EventLoopGroup newGroup(int threads) {
+        return newGroup(threads, null);
+    }
+
+    /**
+     * Get the socket channel type for the transport in use.
+     * 
+     * @return the socket channel type.
+     */
+    public Class<? extends SocketChannel> getSocketChannel() {
+        return epoll ? Native.socketChannel() : NioSocketChannel.class;
+    }
+
+    /**
+     * Get the server socket channel type for the transport in use.
+     * 
+     * @return the server socket channel type.
+     */
+    public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+        return epoll ? Native.serverSocketChannel() : NioServerSocketChannel.class;
+    }
+
+    /**
+     * Get a factory for IPv4 datagram channels of the transport in use.
+     * 
+     * @return a datagram channel factory.
+     */
+    public ChannelFactory<Channel> getDatagramChannelFactory() {
+        return new ChannelFactory<Channel>() {
+            @Override
+            public Channel newChannel() {
+                if(epoll) {
+                    return Native.newDatagramChannel();
+                }
+                return new NioDatagramChannel(InternetProtocolFamily.IPv4);
+            }
+
+            @Override
+            public String toString() {
+                return (epoll ? "EpollDatagramChannel" : "NioDatagramChannel") + ".class";
+            }
+        };
+    }
+
+    /**
+     * Apply the transport specific options to a bootstrap.
+     * 
+     * @param b a bootstrap.
+     * @param dataPort true if the bootstrap binds a data port.
+     */
+    public void configure(AbstractBootstrap<?, ?> b, boolean dataPort) {
+        if(epoll) {
+            Native.configure(b, edgeTriggered, dataPort && reusePort);
+        }
+    }
+
+    private EventLoopGroup newGroup(int threads, DefaultThreadFactory threadFactory) {
+        if(epoll) {
+            return Native.newGroup(threads, threadFactory);
+        }
+
+        return threadFactory == null 
+                ? new NioEventLoopGroup(threads) 
+                : new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    /**
+     * Counts the leak reports logged by the leak detector.
+     */
+    private static final class LeakCounter extends AppenderBase<ILoggingEvent> {
+
+        private final AtomicLong leaks;
+
+        LeakCounter(AtomicLong leaks) {
+            this.leaks = leaks;
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            if(event.getLevel() == Level.ERROR 
+                    && event.getMessage() != null 
+                    && event.getMessage().contains("release() was not called")) {
+                leaks.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Every use of the native epoll classes. Nothing here is loaded unless 
+     * epoll is enabled and its artifact is present.
+     */
+    private static final class Native {
+
+        static boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        static Throwable unavailabilityCause() {
+            return Epoll.unavailabilityCause();
+        }
+
+        static EventLoopGroup newGroup(int threads, DefaultThreadFactory threadFactory) {
+            return threadFactory == null 
+                    ? new EpollEventLoopGroup(threads) 
+                    : new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        static Class<? extends SocketChannel> socketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        static Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        static Channel newDatagramChannel() {
+            return new EpollDatagramChannel();
+        }
+
+        static void configure(AbstractBootstrap<?, ?> b, boolean edgeTriggered, boolean reusePort) {
+            EpollMode mode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            b.option(EpollChannelOption.EPOLL_MODE, mode);
+            if(reusePort) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if(b instanceof ServerBootstrap) {
+                ((ServerBootstrap)b).childOption(EpollChannelOption.EPOLL_MODE, mode);
+            }
+        }
+    }
+}
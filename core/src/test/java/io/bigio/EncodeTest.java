@@ -7,6 +7,8 @@
 package io.bigio;
 
 import io.bigio.agent.MessageTransformer;
+import io.bigio.core.codec.GenericCodec;
+import static org.junit.Assert.*;
 import org.junit.Test;
 
 /**
@@ -26,4 +28,19 @@ public class EncodeTest {
 
         MessageUtils.testMessageEquality(message, decodedMessage);
     }
+
+    @Test
+    public void testGenericCodec() throws Exception {
+
+        RepMessage message = MessageUtils.createMessage();
+
+        byte[] bytes = GenericCodec.encode(message);
+        for(int i = 0; i < 2; ++i) {
+            RepMessage decodedMessage = (RepMessage)GenericCodec.decode(RepMessage.class.getName(), bytes);
+            MessageUtils.testMessageEquality(message, decodedMessage);
+        }
+
+        assertNull(GenericCodec.decode("io.bigio.NoSuchMessage", bytes));
+        assertNull(GenericCodec.decode(String.class.getName(), bytes));
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio;
+
+import io.bigio.core.Envelope;
+import io.bigio.core.codec.EnvelopeCodec;
+import io.bigio.core.codec.EnvelopeFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+/**
+ *
+ * @author atrimble
+ */
+public class EnvelopeCodecTest {
+    
+    @Test
+    public void testPooledEncodeDecode() throws Exception {
+        Envelope envelope = new Envelope();
+        envelope.setSenderKey("127.0.0.1:9990:9991");
+        envelope.setEncrypted(true);
+        envelope.setKey(new byte[] { 1, 2, 3, -4 });
+        envelope.setExecuteTime(0);
+        envelope.setMillisecondsSinceMidnight(12345);
+        envelope.setTopic("TestTopic");
+        envelope.setPartition(".*");
+        envelope.setClassName(RepMessage.class.getName());
+        envelope.setPayload(new byte[70000]);
+        envelope.getPayload()[69999] = -1;
+
+        ByteBuf frame = EnvelopeCodec.encode(envelope, PooledByteBufAllocator.DEFAULT);
+        byte[] bytes = EnvelopeCodec.encode(envelope);
+
+        try {
+            assertEquals(bytes.length, frame.readableBytes());
+            assertEquals((short)(frame.readableBytes() - 2), frame.readShort());
+
+            Envelope decoded = EnvelopeCodec.decode(frame);
+            assertEquals(envelope.getSenderKey(), decoded.getSenderKey());
+            assertTrue(decoded.isEncrypted());
+            assertArrayEquals(envelope.getKey(), decoded.getKey());
+            assertEquals(12345, decoded.getMillisecondsSinceMidnight());
+            assertEquals("TestTopic", decoded.getTopic());
+            assertEquals(".*", decoded.getPartition());
+            assertEquals(RepMessage.class.getName(), decoded.getClassName());
+            assertArrayEquals(envelope.getPayload(), decoded.getPayload());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testSessionKeyReference() throws Exception {
+        Envelope envelope = new Envelope();
+        envelope.setSenderKey("127.0.0.1:9990:9991");
+        envelope.setEncrypted(true);
+        envelope.setKeyId(42);
+        envelope.setExecuteTime(0);
+        envelope.setMillisecondsSinceMidnight(12345);
+        envelope.setTopic("TestTopic");
+        envelope.setPartition(".*");
+        envelope.setClassName(RepMessage.class.getName());
+        envelope.setPayload(new byte[] { 1, 2, 3 });
+
+        Envelope decoded = roundTrip(envelope);
+        assertTrue(decoded.isEncrypted());
+        assertEquals(42, decoded.getKeyId());
+        assertNull(decoded.getKey());
+        assertEquals("TestTopic", decoded.getTopic());
+        assertArrayEquals(envelope.getPayload(), decoded.getPayload());
+
+        envelope.setKey(new byte[] { 9, 8, 7 });
+        decoded = roundTrip(envelope);
+        assertEquals(42, decoded.getKeyId());
+        assertArrayEquals(envelope.getKey(), decoded.getKey());
+    }
+
+    @Test
+    public void testCompactHeader() throws Exception {
+        Envelope envelope = new Envelope();
+        envelope.setSenderKey("127.0.0.1:9990:9991");
+        envelope.setExecuteTime(0);
+        envelope.setMillisecondsSinceMidnight(12345);
+        envelope.setTopic("CompactTopic");
+        envelope.setPartition(".*");
+        envelope.setClassName(RepMessage.class.getName());
+        envelope.setPayload(new byte[] { 1, 2, 3 });
+
+        EnvelopeFrame frame = new EnvelopeFrame(envelope);
+        Set<Integer> defined = new HashSet<>();
+        Map<Integer, String> dictionary = new HashMap<>();
+
+        try {
+            assertFalse(frame.isDefined(defined));
+            ByteBuf defining = frame.getDefining(PooledByteBufAllocator.DEFAULT);
+            Envelope decoded = EnvelopeCodec.decode(defining.slice(2, defining.readableBytes() - 2), dictionary);
+            assertEquals("CompactTopic", decoded.getTopic());
+            decoded.release();
+            frame.define(defined);
+
+            assertTrue(frame.isDefined(defined));
+            ByteBuf compact = frame.getCompact(PooledByteBufAllocator.DEFAULT);
+            assertTrue(compact.readableBytes() < defining.readableBytes());
+
+            decoded = EnvelopeCodec.decode(compact.slice(2, compact.readableBytes() - 2), dictionary);
+            assertEquals(envelope.getSenderKey(), decoded.getSenderKey());
+            assertEquals("CompactTopic", decoded.getTopic());
+            assertEquals(".*", decoded.getPartition());
+            assertEquals(RepMessage.class.getName(), decoded.getClassName());
+            assertArrayEquals(envelope.getPayload(), decoded.getPayload());
+
+            try {
+                EnvelopeCodec.decode(compact.slice(2, compact.readableBytes() - 2), new HashMap<>());
+                fail();
+            } catch(IOException ex) {
+                // expected, the ids were never defined
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testVersion1Batch() throws Exception {
+        Envelope envelope = new Envelope();
+        envelope.setSenderKey("127.0.0.1:9990:9991");
+        envelope.setExecuteTime(0);
+        envelope.setMillisecondsSinceMidnight(12345);
+        envelope.setTopic("Version1Topic");
+        envelope.setPartition(".*");
+        envelope.setClassName(RepMessage.class.getName());
+        envelope.setBatch(true);
+        envelope.setPayload(EnvelopeCodec.encodeBatch(Arrays.asList(new byte[] { 1, 2 }, new byte[] { 3 })));
+
+        EnvelopeFrame frame = new EnvelopeFrame(envelope);
+
+        try {
+            ByteBuf frames = frame.getVersion1(PooledByteBufAllocator.DEFAULT).duplicate();
+            List<Envelope> decoded = new ArrayList<>();
+            while(frames.isReadable()) {
+                int length = frames.readUnsignedShort();
+                decoded.add(EnvelopeCodec.decode(frames.readSlice(length)));
+            }
+
+            assertEquals(2, decoded.size());
+            for(Envelope message : decoded) {
+                assertFalse(message.isBatch());
+                assertEquals(envelope.getSenderKey(), message.getSenderKey());
+                assertEquals("Version1Topic", message.getTopic());
+                assertEquals(".*", message.getPartition());
+                assertEquals(RepMessage.class.getName(), message.getClassName());
+            }
+            assertArrayEquals(new byte[] { 1, 2 }, decoded.get(0).getPayload());
+            assertArrayEquals(new byte[] { 3 }, decoded.get(1).getPayload());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testLegacyDecode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePacker packer = new MessagePack().newPacker(out);
+        packer.packInt(127).packInt(0).packInt(0).packInt(1).packInt(9990).packInt(9991);
+        packer.packBoolean(false);
+        packer.packInt(0).packInt(12345);
+        packer.packString("LegacyTopic").packString(".*").packString(RepMessage.class.getName());
+        packer.packArrayHeader(2).packByte((byte)7).packByte((byte)-8);
+        packer.close();
+
+        Envelope decoded = EnvelopeCodec.decode(out.toByteArray());
+        assertEquals("127.0.0.1:9990:9991", decoded.getSenderKey());
+        assertEquals("LegacyTopic", decoded.getTopic());
+        assertArrayEquals(new byte[] { 7, -8 }, decoded.getPayload());
+    }
+
+    private static Envelope roundTrip(Envelope envelope) throws IOException {
+        ByteBuf frame = EnvelopeCodec.encode(envelope, PooledByteBufAllocator.DEFAULT);
+        try {
+            frame.skipBytes(2);
+            Envelope decoded = EnvelopeCodec.decode(frame);
+            decoded.getPayload();
+            return decoded;
+        } finally {
+            frame.release();
+        }
+    }
+}
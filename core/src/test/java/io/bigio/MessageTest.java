@@ -5,9 +5,12 @@
  */
 package io.bigio;
 
+import io.bigio.util.TopicUtils;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -91,6 +94,106 @@ public class MessageTest {
         queue.clear();
     }
 
+    @Test
+    public void testDispatchStrategies() throws Exception {
+        failed = false;
+
+        for(DispatchStrategy strategy : DispatchStrategy.values()) {
+            String topic = "Dispatch" + strategy.name() + "Topic";
+            speaker.addListener(topic, listener, strategy);
+            speaker.send(topic, new MyMessage(MESSAGE + strategy.name()));
+            MyMessage m = queue.poll(2000l, TimeUnit.MILLISECONDS);
+            assertNotNull(m);
+            assertEquals(m.getMessage(), MESSAGE + strategy.name());
+        }
+
+        if(failed) {
+            fail();
+        }
+
+        queue.clear();
+    }
+
+    @Test
+    public void testBlockingListener() throws Exception {
+        BlockingListener blocking = new BlockingListener();
+        speaker.addBlockingListener("BlockingTopic", blocking, 2);
+        for(int i = 0; i < 10; ++i) {
+            speaker.send("BlockingTopic", new MyMessage(MESSAGE + i));
+        }
+
+        Thread.sleep(1000l);
+
+        assertEquals(10, blocking.counter.get());
+        assertTrue(blocking.maxActive.get() <= 2);
+    }
+
+    @Test
+    public void testBatchListener() throws Exception {
+        BatchListener batches = new BatchListener();
+        speaker.addBatchListener("BatchTopic", TopicUtils.ALL_PARTITIONS, batches, 4, 100l);
+        for(int i = 0; i < 10; ++i) {
+            speaker.send("BatchTopic", new MyMessage(MESSAGE + i));
+        }
+
+        Thread.sleep(1000l);
+
+        assertEquals(10, batches.counter.get());
+        assertTrue(batches.maxSize.get() <= 4);
+        assertTrue(batches.batches.get() < 10);
+    }
+
+    @Test
+    public void testOverflowPolicy() throws Exception {
+        BlockingListener slow = new BlockingListener();
+        speaker.setOverflowPolicy("OverflowTopic", OverflowPolicy.DROP_NEWEST, 2);
+        speaker.addListener("OverflowTopic", slow);
+        for(int i = 0; i < 10; ++i) {
+            speaker.send("OverflowTopic", new MyMessage(MESSAGE + i));
+        }
+
+        Thread.sleep(1000l);
+
+        assertTrue(slow.counter.get() < 10);
+        assertTrue(slow.counter.get() >= 2);
+    }
+
+    @Test
+    public void testBlockOnSharedThread() throws Exception {
+        try {
+            speaker.setOverflowPolicy("SharedBlockTopic", OverflowPolicy.BLOCK, 2);
+            fail("Expected BLOCK to be rejected on the shared ring buffer.");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+
+        speaker.setDispatchStrategy("OwnBlockTopic", DispatchStrategy.ORDERED);
+        speaker.setOverflowPolicy("OwnBlockTopic", OverflowPolicy.BLOCK, 2);
+        try {
+            speaker.setDispatchStrategy("OwnBlockTopic", DispatchStrategy.WORK_STEALING);
+            fail("Expected a shared strategy to be rejected on a blocking topic.");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConflation() throws Exception {
+        BlockingListener slow = new BlockingListener();
+        speaker.setConflation("ConflatedTopic", (MyMessage m) -> m.getMessage().length() % 3);
+        speaker.addListener("ConflatedTopic", slow);
+        String text = MESSAGE;
+        for(int i = 0; i < 30; ++i) {
+            text += i % 10;
+            speaker.send("ConflatedTopic", new MyMessage(text));
+        }
+
+        Thread.sleep(1000l);
+
+        assertTrue(slow.counter.get() < 30);
+        assertTrue(slow.counter.get() >= 3);
+    }
+
     @Test
     public void testAllPartitions() throws Exception {
         failed = false;
@@ -256,6 +359,38 @@ public class MessageTest {
         }
     }
 
+    private class BlockingListener implements MessageListener<MyMessage> {
+        public final AtomicInteger counter = new AtomicInteger();
+        public final AtomicInteger active = new AtomicInteger();
+        public final AtomicInteger maxActive = new AtomicInteger();
+
+        @Override
+        public void receive(MyMessage message) {
+            int now = active.incrementAndGet();
+            maxActive.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(20l);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            counter.incrementAndGet();
+        }
+    }
+
+    private class BatchListener implements BatchMessageListener<MyMessage> {
+        public final AtomicInteger counter = new AtomicInteger();
+        public final AtomicInteger batches = new AtomicInteger();
+        public final AtomicInteger maxSize = new AtomicInteger();
+
+        @Override
+        public void receive(List<MyMessage> messages) {
+            batches.incrementAndGet();
+            maxSize.accumulateAndGet(messages.size(), Math::max);
+            counter.addAndGet(messages.size());
+        }
+    }
+
     private class DelayedMessageListener implements MessageListener<MyMessage> {
 
         @Override
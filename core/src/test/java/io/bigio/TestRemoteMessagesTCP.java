@@ -3,8 +3,11 @@
  */
 package io.bigio;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
@@ -27,6 +30,9 @@ public class TestRemoteMessagesTCP {
 
     private static final MyMessageListener listener = new MyMessageListener();
     private static final VolumeListener volumeListener = new VolumeListener();
+    private static final VolumeListener conflatedListener = new VolumeListener();
+    private static final VolumeListener batchListener = new VolumeListener();
+    private static final VolumeListener asyncListener = new VolumeListener();
     private static final DelayedMessageListener delayedListener = new DelayedMessageListener();
 
     private static final String MESSAGE = "This is a test";
@@ -45,6 +51,9 @@ public class TestRemoteMessagesTCP {
 
         speaker2.addListener("MyTCPTopic", listener);
         speaker2.addListener("VolumeTopic", volumeListener);
+        speaker2.addListener("ConflatedTCPTopic", conflatedListener);
+        speaker2.addListener("BatchTCPTopic", batchListener);
+        speaker2.addListener("AsyncTCPTopic", asyncListener);
         speaker2.addListener("DelayedTCPTopic", delayedListener);
         speaker2.addListener("AllTCPPartitionTopic", ".*", listener);
         speaker2.addListener("SpecificTCPPartitionTopic", "MyTCPPartition", listener);
@@ -73,6 +82,49 @@ public class TestRemoteMessagesTCP {
         assertTrue(volumeListener.counter == 500);
     }
 
+    @Test
+    public void testSendAsync() throws Exception {
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 100; ++i) {
+            last = speaker1.sendAsync("AsyncTCPTopic", new MyMessage(MESSAGE + i));
+        }
+
+        last.get(2000l, TimeUnit.MILLISECONDS);
+        assertTrue(last.isDone() && !last.isCompletedExceptionally());
+
+        Thread.sleep(1000l);
+
+        assertEquals(100, asyncListener.counter);
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        List<MyMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            messages.add(new MyMessage(MESSAGE + i));
+        }
+
+        speaker1.sendBatch("BatchTCPTopic", messages);
+
+        Thread.sleep(1000l);
+
+        assertEquals(2000, batchListener.counter);
+    }
+
+    @Test
+    public void testSenderConflation() throws Exception {
+        speaker1.setSenderConflation("ConflatedTCPTopic", (MyMessage m) -> m.getMessage().length(), 200l);
+
+        for (int i = 0; i < 100; ++i) {
+            speaker1.send("ConflatedTCPTopic", new MyMessage(MESSAGE + (i % 2 == 0 ? "" : "!")));
+        }
+
+        Thread.sleep(1000l);
+
+        assertTrue(conflatedListener.counter >= 2);
+        assertTrue(conflatedListener.counter < 100);
+    }
+
     @Test
     public void testMessage() throws Exception {
         failed = false;
@@ -93,6 +93,22 @@ public class TestTCPEncryption {
         queue.clear();
     }
 
+    @Test
+    public void testPlaintextTopic() throws Exception {
+        speaker1.setEncrypted("MyPlainTopic", false);
+        speaker2.setEncrypted("MyPlainTopic", false);
+        speaker2.addListener("MyPlainTopic", listener);
+
+        Thread.sleep(1000l);
+
+        speaker1.send("MyPlainTopic", new MyMessage(MESSAGE));
+        MyMessage m = queue.poll(2000l, TimeUnit.MILLISECONDS);
+        assertNotNull(m);
+        assertEquals(m.getMessage(), MESSAGE);
+
+        queue.clear();
+    }
+
     private static class MyMessageListener implements MessageListener<MyMessage> {
 
         @Override
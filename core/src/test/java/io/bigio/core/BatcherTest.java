@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import io.netty.util.HashedWheelTimer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class BatcherTest {
+
+    private HashedWheelTimer timer;
+    private TopicDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer();
+        dispatcher = new TopicDispatcher();
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testListenerRunsOutsideLock() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<String>> received = new ArrayList<>();
+        Batcher<String> batcher = new Batcher<>("BatchTopic", (List<String> messages) -> {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(messages);
+        }, 1, 0, dispatcher, timer);
+
+        Thread delivery = new Thread(() -> batcher.accept("first"));
+        delivery.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // A second batch closed while the listener is busy is queued, not 
+        // blocked on the lock, and handed over by the busy thread.
+        Thread second = new Thread(() -> batcher.accept("second"));
+        second.start();
+        second.join(1000l);
+        assertFalse(second.isAlive());
+
+        release.countDown();
+        delivery.join(5000l);
+        assertEquals(Arrays.asList(Arrays.asList("first"), Arrays.asList("second")), received);
+    }
+
+    @Test
+    public void testStoppedTimerDeliversAtOnce() {
+        List<List<String>> received = new ArrayList<>();
+        Batcher<String> batcher = new Batcher<>("BatchTopic", received::add, 
+                10, 60000l, dispatcher, timer);
+        timer.stop();
+
+        batcher.accept("only");
+        assertEquals(Arrays.asList(Arrays.asList("only")), received);
+    }
+}
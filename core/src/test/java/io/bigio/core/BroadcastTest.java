@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import io.bigio.Message;
+import io.bigio.core.codec.EnvelopeFrame;
+import io.bigio.core.member.MemberHolder;
+import io.bigio.core.member.RemoteMemberTCP;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class BroadcastTest {
+
+    private static final String TOPIC = "BroadcastTopic";
+    private static final String PARTITION = ".*";
+
+    private ClusterService cluster;
+    private CapturingMember first;
+    private CapturingMember second;
+
+    @Before
+    public void init() throws Exception {
+        MemberHolder memberHolder = new MemberHolder();
+        ListenerRegistry registry = new ListenerRegistry();
+        registry.init();
+        MCDiscovery mc = new MCDiscovery();
+        mc.setMemberHolder(memberHolder);
+        cluster = new ClusterService();
+        cluster.setMulticastDiscovery(mc);
+        cluster.setMemberHolder(memberHolder);
+        cluster.setRegistry(registry);
+        cluster.initialize();
+
+        first = new CapturingMember("127.0.0.2");
+        second = new CapturingMember("127.0.0.3");
+        registry.registerMemberForTopic(TOPIC, PARTITION, first);
+        registry.registerMemberForTopic(TOPIC, PARTITION, second);
+    }
+
+    @After
+    public void shutdown() {
+        cluster.shutdown();
+    }
+
+    @Test
+    public void testFrameIsShared() throws Exception {
+        cluster.sendMessage(TOPIC, PARTITION, new BroadcastMessage("shared"));
+
+        assertEquals(1, first.frames.size());
+        assertEquals(1, second.frames.size());
+        assertSame(first.frames.get(0), second.frames.get(0));
+        assertSame(first.encoded.get(0), second.encoded.get(0));
+    }
+
+    @Test
+    public void testFrameIsSharedAsync() throws Exception {
+        cluster.sendMessageAsync(TOPIC, PARTITION, new BroadcastMessage("shared")).get();
+
+        assertEquals(1, first.frames.size());
+        assertEquals(1, second.frames.size());
+        assertSame(first.frames.get(0), second.frames.get(0));
+        assertSame(first.encoded.get(0), second.encoded.get(0));
+    }
+
+    @Test
+    public void testEachPublishEncodes() throws Exception {
+        cluster.sendMessage(TOPIC, PARTITION, new BroadcastMessage("one"));
+        cluster.sendMessage(TOPIC, PARTITION, new BroadcastMessage("two"));
+
+        assertEquals(2, first.frames.size());
+        assertNotSame(first.frames.get(0), first.frames.get(1));
+        assertSame(first.frames.get(1), second.frames.get(1));
+    }
+
+    private static class CapturingMember extends RemoteMemberTCP {
+
+        private final List<EnvelopeFrame> frames = new ArrayList<>();
+        private final List<ByteBuf> encoded = new ArrayList<>();
+
+        CapturingMember(String ip) {
+            super(ip, 10001, 10002, null);
+        }
+
+        @Override
+        public void sendFrame(EnvelopeFrame frame) throws IOException {
+            frames.add(frame);
+            encoded.add(frame.getCompact(UnpooledByteBufAllocator.DEFAULT));
+        }
+
+        @Override
+        public CompletableFuture<Void> sendFrameAsync(EnvelopeFrame frame) {
+            try {
+                sendFrame(frame);
+            } catch(IOException ex) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @Message
+    public static final class BroadcastMessage {
+
+        private String value;
+
+        public BroadcastMessage() {
+
+        }
+
+        public BroadcastMessage(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+}
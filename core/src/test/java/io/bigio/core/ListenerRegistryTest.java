@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import io.bigio.core.member.Member;
+import io.bigio.core.member.RemoteMemberTCP;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class ListenerRegistryTest {
+
+    private static final String TOPIC = "RegistryTopic";
+    private static final String PARTITION = ".*";
+
+    private ListenerRegistry registry;
+    private Member me;
+
+    @Before
+    public void setUp() {
+        registry = new ListenerRegistry();
+        registry.init();
+        me = new RemoteMemberTCP("127.0.0.1", 10001, 10002, null);
+        registry.setMe(me);
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Test
+    public void testRouteFollowsRegistrations() {
+        Member first = new RemoteMemberTCP("127.0.0.2", 10001, 10002, null);
+        Member second = new RemoteMemberTCP("127.0.0.3", 10001, 10002, null);
+
+        assertEquals(0, registry.getRoute(TOPIC).length);
+
+        registry.registerMemberForTopic(TOPIC, PARTITION, first);
+        Member[] before = registry.getRoute(TOPIC);
+        assertArrayEquals(new Member[] { first }, before);
+
+        registry.registerMemberForTopic(TOPIC, PARTITION, second);
+        registry.registerMemberForTopic(TOPIC, PARTITION, second);
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), 
+                new HashSet<>(Arrays.asList(registry.getRoute(TOPIC))));
+        assertArrayEquals(new Member[] { first }, before);
+        assertEquals(0, registry.getRoute("OtherTopic").length);
+
+        List<Registration> regs = registry.getAllRegistrations().stream()
+                .filter((reg) -> first.equals(reg.getMember()))
+                .collect(Collectors.toList());
+        registry.removeRegistrations(regs);
+        assertArrayEquals(new Member[] { second }, registry.getRoute(TOPIC));
+
+        registry.removeRegistrations(registry.getAllRegistrations());
+        assertEquals(0, registry.getRoute(TOPIC).length);
+    }
+
+    @Test
+    public void testLocalFastPath() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        registry.addLocalListener(TOPIC, PARTITION, (String message) -> {
+            if("fast".equals(message)) {
+                received.countDown();
+            }
+        });
+
+        assertFalse(registry.sendLocal(TOPIC, PARTITION, "fast"));
+
+        registry.registerMemberForTopic(TOPIC, PARTITION, me);
+        assertTrue(registry.sendLocal(TOPIC, PARTITION, "fast"));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFastPathSkippedWithInterceptor() {
+        registry.registerMemberForTopic(TOPIC, PARTITION, me);
+        assertTrue(registry.sendLocal(TOPIC, PARTITION, "fast"));
+
+        registry.addInterceptor(TOPIC, (Envelope envelope) -> envelope);
+        assertFalse(registry.sendLocal(TOPIC, PARTITION, "fast"));
+    }
+
+    @Test
+    public void testFastPathSkippedWithRemoteMember() {
+        registry.registerMemberForTopic(TOPIC, PARTITION, me);
+        registry.registerMemberForTopic(TOPIC, PARTITION, 
+                new RemoteMemberTCP("127.0.0.2", 10001, 10002, null));
+        assertFalse(registry.sendLocal(TOPIC, PARTITION, "fast"));
+
+        List<Registration> regs = registry.getAllRegistrations().stream()
+                .filter((reg) -> !me.equals(reg.getMember()))
+                .collect(Collectors.toList());
+        registry.removeRegistrations(regs);
+        assertTrue(registry.sendLocal(TOPIC, PARTITION, "fast"));
+    }
+
+    @Test
+    public void testBatchListenerLifecycle() throws Exception {
+        ListenerRegistry fresh = new ListenerRegistry();
+        fresh.setMe(me);
+        fresh.registerMemberForTopic(TOPIC, PARTITION, me);
+
+        CountDownLatch received = new CountDownLatch(1);
+        fresh.addLocalBatchListener(TOPIC, PARTITION, (List<String> messages) -> received.countDown(), 10, 10);
+        assertTrue(fresh.sendLocal(TOPIC, PARTITION, "batched"));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        fresh.shutdown();
+        try {
+            fresh.addLocalBatchListener(TOPIC, PARTITION, (List<String> messages) -> { }, 10, 10);
+            fail("Expected the registry to reject the listener.");
+        } catch(IllegalStateException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import io.bigio.OverflowPolicy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class MailboxTest {
+
+    @Test
+    public void testFailingListenerKeepsDraining() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch received = new CountDownLatch(1);
+        Mailbox mailbox = new Mailbox("MailboxTopic", "", OverflowPolicy.DROP_NEWEST, 10, (Object m) -> {
+            if("fail".equals(m)) {
+                throw new IllegalStateException("Listener failure");
+            }
+            received.countDown();
+        }, executor, null);
+
+        mailbox.accept("fail");
+        // Let the drain finish before the next message arrives, so the 
+        // mailbox has to be scheduled again.
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        mailbox.accept("after");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import io.bigio.DispatchStrategy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import reactor.function.Consumer;
+
+/**
+ *
+ * @author atrimble
+ */
+public class TopicDispatcherTest {
+
+    @Test
+    public void testLimitDoesNotBlockDispatcher() throws Exception {
+        TopicDispatcher dispatcher = new TopicDispatcher();
+        dispatcher.setStrategy("Slow", DispatchStrategy.VIRTUAL_THREAD);
+        dispatcher.setMaxConcurrency("Slow", 1);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Consumer<Object> slow = (Object m) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            delivered.countDown();
+        };
+
+        CountDownLatch other = new CountDownLatch(1);
+        Consumer<Object> fast = (Object m) -> other.countDown();
+
+        for(int i = 0; i < 3; ++i) {
+            dispatcher.dispatch("Slow", Arrays.asList(slow), i);
+        }
+        dispatcher.dispatch("Fast", Arrays.asList(fast), "fast");
+
+        assertTrue(other.await(1, TimeUnit.SECONDS));
+        assertEquals(3, delivered.getCount());
+
+        release.countDown();
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testShutdownStopsThreads() throws Exception {
+        TopicDispatcher dispatcher = new TopicDispatcher();
+        dispatcher.setStrategy("Ordered", DispatchStrategy.ORDERED);
+
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        CountDownLatch delivered = new CountDownLatch(2);
+        Consumer<Object> listener = (Object m) -> {
+            threads.add(Thread.currentThread());
+            delivered.countDown();
+        };
+        dispatcher.dispatch("Ring", Arrays.asList(listener), "ring");
+        dispatcher.dispatch("Ordered", Arrays.asList(listener), "ordered");
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+        dispatcher.shutdown();
+        for(Thread thread : threads) {
+            thread.join(5000l);
+            assertFalse(thread.getName(), thread.isAlive());
+        }
+
+        dispatcher.dispatch("Ring", Arrays.asList(listener), "dropped");
+        assertEquals(2, threads.size());
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class TopicIndexTest {
+
+    @Test
+    public void testMatching() {
+        TopicIndex<String> index = new TopicIndex<>();
+        index.add("Topic", ".*", "all");
+        index.add("Topic", "Partition", "exact");
+        index.add("Topic", "Part[0-9]+", "pattern");
+        index.add("Other", "Partition", "other");
+
+        assertEquals(new HashSet<>(Arrays.asList("all", "exact")), 
+                new HashSet<>(index.get("Topic", "Partition")));
+        assertEquals(new HashSet<>(Arrays.asList("all", "pattern")), 
+                new HashSet<>(index.get("Topic", "Part42")));
+        assertEquals(Arrays.asList("all"), index.get("Topic", ".*"));
+        assertEquals(Arrays.asList("other"), index.get("Other", "Partition"));
+        assertTrue(index.get("Other", "Part42").isEmpty());
+        assertTrue(index.get("Topi", "Partition").isEmpty());
+        assertTrue(index.get("TopicPartition", "").isEmpty());
+
+        index.removeAll("Topic", ".*");
+        assertEquals(Arrays.asList("exact"), index.get("Topic", "Partition"));
+
+        index.removeAll("Topic", "Partition");
+        index.removeAll("Topic", "Part[0-9]+");
+        assertTrue(index.get("Topic", "Part42").isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core.member;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class BackpressureTest {
+
+    @Test
+    public void testAsyncWriteIsHeld() throws Exception {
+        RemoteMemberTCP member = new RemoteMemberTCP("127.0.0.1", 1, 2, null);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        member.watchWritability(channel);
+
+        // Fill the outbound buffer past its high water mark.
+        ChannelFuture first = member.write(channel, frame(70000), true);
+        assertFalse(channel.isWritable());
+
+        long start = System.currentTimeMillis();
+        ChannelFuture held = member.write(channel, frame(10), true);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertNotNull(held);
+        assertFalse(held.isDone());
+
+        channel.flush();
+        channel.runPendingTasks();
+        assertTrue(first.isSuccess());
+        channel.flush();
+        assertTrue(held.isSuccess());
+
+        release(channel);
+    }
+
+    @Test
+    public void testNettyThreadDoesNotBlock() throws Exception {
+        RemoteMemberTCP member = new RemoteMemberTCP("127.0.0.1", 1, 2, null);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        member.watchWritability(channel);
+        member.write(channel, frame(70000), false);
+        assertFalse(channel.isWritable());
+
+        AtomicReference<ChannelFuture> held = new AtomicReference<>();
+        Thread thread = new FastThreadLocalThread(() -> {
+            try {
+                held.set(member.write(channel, frame(10), false));
+            } catch(Exception ex) {
+                fail(ex.getMessage());
+            }
+        });
+        thread.start();
+        thread.join(1000l);
+
+        assertFalse(thread.isAlive());
+        assertNotNull(held.get());
+        assertFalse(held.get().isDone());
+
+        release(channel);
+        assertFalse(held.get().isSuccess());
+    }
+
+    private static ByteBuf frame(int size) {
+        return Unpooled.buffer(size).writeZero(size);
+    }
+
+    private static void release(EmbeddedChannel channel) {
+        channel.flush();
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            ((ByteBuf)msg).release();
+        }
+        channel.close();
+        channel.runPendingTasks();
+        while((msg = channel.readOutbound()) != null) {
+            ((ByteBuf)msg).release();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core.member;
+
+import io.bigio.Parameters;
+import io.bigio.core.Envelope;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class DecoderShardTest {
+
+    private static final int SENDERS = 4;
+    private static final int MESSAGES = 2000;
+
+    private String threads;
+
+    @Before
+    public void setUp() {
+        threads = Parameters.INSTANCE.getProperty(MeMember.DECODER_THREADS_PROPERTY);
+        Parameters.INSTANCE.setProperty(MeMember.DECODER_THREADS_PROPERTY, Integer.toString(SENDERS));
+    }
+
+    @After
+    public void tearDown() {
+        Parameters.INSTANCE.setProperty(MeMember.DECODER_THREADS_PROPERTY, threads != null ? threads 
+                : Integer.toString(Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Test
+    public void testPerSenderOrdering() throws Exception {
+        RecordingMember member = new RecordingMember(SENDERS * MESSAGES);
+        member.initialize();
+
+        List<Thread> producers = new ArrayList<>();
+        for(int s = 0; s < SENDERS; ++s) {
+            final String sender = "127.0.0." + (s + 2) + ":10001:10002";
+            producers.add(new Thread(() -> {
+                for(int i = 0; i < MESSAGES; ++i) {
+                    Envelope envelope = new Envelope();
+                    envelope.setSenderKey(sender);
+                    envelope.setTopic("Topic" + (i % 3));
+                    envelope.setPartition("");
+                    envelope.setMillisecondsSinceMidnight(i);
+                    member.receive(envelope);
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for(Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(member.done.await(10, TimeUnit.SECONDS));
+        assertEquals(SENDERS, member.received.size());
+        for(Map.Entry<String, List<Integer>> entry : member.received.entrySet()) {
+            List<Integer> sequence = entry.getValue();
+            assertEquals(MESSAGES, sequence.size());
+            for(int i = 0; i < MESSAGES; ++i) {
+                assertEquals(entry.getKey(), i, (int)sequence.get(i));
+            }
+            assertEquals(entry.getKey(), 1, member.threads.get(entry.getKey()).size());
+        }
+
+        member.shutdown();
+        for(Set<Thread> decoders : member.threads.values()) {
+            for(Thread decoder : decoders) {
+                decoder.join(5000l);
+                assertFalse(decoder.getName(), decoder.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testShutdownStopsDecoders() throws Exception {
+        RecordingMember member = new RecordingMember(1);
+        member.initialize();
+        member.shutdown();
+
+        Envelope envelope = new Envelope();
+        envelope.setSenderKey("127.0.0.2:10001:10002");
+        envelope.setTopic("Topic");
+        envelope.setPartition("");
+        member.receive(envelope);
+
+        assertFalse(member.done.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    private static class RecordingMember extends MeMember {
+
+        private final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        private final Map<String, Set<Thread>> threads = new ConcurrentHashMap<>();
+        private final CountDownLatch done;
+
+        RecordingMember(int expected) {
+            super("127.0.0.1", 10001, 10002, null, null);
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void initializeServers() {
+
+        }
+
+        @Override
+        public void send(Envelope envelope) throws IOException {
+            received.computeIfAbsent(envelope.getSenderKey(), 
+                    (k) -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(envelope.getMillisecondsSinceMidnight());
+            threads.computeIfAbsent(envelope.getSenderKey(), 
+                    (k) -> Collections.synchronizedSet(new HashSet<>()))
+                    .add(Thread.currentThread());
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core.member;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class EncryptionPolicyTest {
+
+    @Test
+    public void testOverridesArePerInstance() {
+        MemberHolder first = new MemberHolder();
+        MemberHolder second = new MemberHolder();
+
+        assertTrue(first.getEncryptionPolicy().isEncrypted("PolicyTopic"));
+        first.getEncryptionPolicy().setEncrypted("PolicyTopic", false);
+
+        assertFalse(first.getEncryptionPolicy().isEncrypted("PolicyTopic"));
+        assertTrue(second.getEncryptionPolicy().isEncrypted("PolicyTopic"));
+    }
+
+    @Test
+    public void testTopicsPastTheCache() {
+        EncryptionPolicy policy = new EncryptionPolicy();
+        for(int i = 0; i < 5000; ++i) {
+            assertTrue(policy.isEncrypted("Topic" + i));
+        }
+        policy.setEncrypted("Topic4999", false);
+        assertFalse(policy.isEncrypted("Topic4999"));
+    }
+}
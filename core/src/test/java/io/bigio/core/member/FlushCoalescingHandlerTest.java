@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package io.bigio.core.member;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author atrimble
+ */
+public class FlushCoalescingHandlerTest {
+
+    @Test
+    public void testFlushBytes() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, 1000000));
+
+        channel.write(frame(40));
+        channel.write(frame(40));
+        assertEquals(0, channel.outboundMessages().size());
+
+        channel.write(frame(40));
+        assertEquals(3, channel.outboundMessages().size());
+
+        release(channel);
+    }
+
+    @Test
+    public void testFlushOnNextIteration() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, 0));
+
+        channel.write(frame(10));
+        channel.write(frame(10));
+        assertEquals(0, channel.outboundMessages().size());
+
+        channel.runPendingTasks();
+        assertEquals(2, channel.outboundMessages().size());
+
+        release(channel);
+    }
+
+    @Test
+    public void testFlushLinger() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, 20000));
+
+        channel.write(frame(10));
+        channel.runPendingTasks();
+        assertEquals(0, channel.outboundMessages().size());
+
+        Thread.sleep(50l);
+        channel.runScheduledPendingTasks();
+        assertEquals(1, channel.outboundMessages().size());
+
+        release(channel);
+    }
+
+    @Test
+    public void testExplicitFlush() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlushCoalescingHandler(100, 1000000));
+
+        channel.write(frame(60));
+        channel.flush();
+        assertEquals(1, channel.outboundMessages().size());
+
+        // The count starts over after a flush.
+        channel.write(frame(60));
+        assertEquals(1, channel.outboundMessages().size());
+
+        release(channel);
+    }
+
+    private static ByteBuf frame(int size) {
+        return Unpooled.buffer(size).writeZero(size);
+    }
+
+    private static void release(EmbeddedChannel channel) {
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            ((ByteBuf)msg).release();
+        }
+        channel.finish();
+    }
+}